@@ -0,0 +1,36 @@
+package io.prometheus.cloudwatch;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Serves every datapoint within range of the last scrape in the OpenMetrics format,
+ * for backfilling with e.g. `promtool tsdb create-blocks-from openmetrics`.
+ */
+public class BackfillServlet extends HttpServlet {
+    private final CloudWatchCollector collector;
+
+    public BackfillServlet(CloudWatchCollector collector) {
+        this.collector = collector;
+    }
+
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        resp.setStatus(HttpServletResponse.SC_OK);
+        resp.setContentType(OpenMetricsSink.CONTENT_TYPE);
+
+        Writer writer = new BufferedWriter(new OutputStreamWriter(StreamingMetricsServlet.getOutputStream(req, resp), "UTF-8"));
+        try {
+            collector.backfill(new OpenMetricsSink(writer));
+            writer.write("# EOF\n");
+            writer.flush();
+        } finally {
+            writer.close();
+        }
+    }
+}
@@ -1,30 +1,72 @@
 package io.prometheus.cloudwatch;
 
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.Request;
+import com.amazonaws.Response;
 import com.amazonaws.auth.STSAssumeRoleSessionCredentialsProvider;
+import com.amazonaws.handlers.RequestHandler2;
 import com.amazonaws.regions.Region;
 import com.amazonaws.regions.RegionUtils;
+import com.amazonaws.retry.PredefinedRetryPolicies;
+import com.amazonaws.retry.RetryPolicy;
+import com.amazonaws.retry.RetryUtils;
 import com.amazonaws.services.cloudwatch.AmazonCloudWatchClient;
 import com.amazonaws.services.cloudwatch.model.Datapoint;
 import com.amazonaws.services.cloudwatch.model.Dimension;
 import com.amazonaws.services.cloudwatch.model.DimensionFilter;
+import com.amazonaws.services.cloudwatch.model.GetMetricDataRequest;
+import com.amazonaws.services.cloudwatch.model.GetMetricDataResult;
 import com.amazonaws.services.cloudwatch.model.GetMetricStatisticsRequest;
 import com.amazonaws.services.cloudwatch.model.GetMetricStatisticsResult;
 import com.amazonaws.services.cloudwatch.model.ListMetricsRequest;
 import com.amazonaws.services.cloudwatch.model.ListMetricsResult;
 import com.amazonaws.services.cloudwatch.model.Metric;
+import com.amazonaws.services.cloudwatch.model.MetricDataQuery;
+import com.amazonaws.services.cloudwatch.model.MetricDataResult;
+import com.amazonaws.services.cloudwatch.model.MetricStat;
 import io.prometheus.client.Collector;
 import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import io.prometheus.client.Histogram;
 
+import java.io.File;
 import java.io.FileReader;
 import java.io.Reader;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.List;
 import java.util.Set;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
@@ -34,35 +76,376 @@ import org.yaml.snakeyaml.Yaml;
 public class CloudWatchCollector extends Collector {
     private static final Logger LOGGER = Logger.getLogger(CloudWatchCollector.class.getName());
 
-    static class ActiveConfig implements Cloneable {
-        ArrayList<MetricRule> rules;
+    /**
+     * A loaded configuration. It is not modified once active, a reload swaps in a new one.
+     */
+    static class ActiveConfig {
+        List<MetricRule> rules;
+        List<Target> targets;
         AmazonCloudWatchClient client;
+        ThreadPoolExecutor executor;
+        int dimensionsCacheTtlSeconds;
+        boolean backgroundPolling;
+        boolean listMetricsPerNamespace;
+        int maxThrottleRetries;
+        boolean backfill;
+        Map<String, Double> requestsPerSecond;
+        int scrapeCacheSeconds;
+        String snapshotFile;
+        int snapshotIntervalSeconds;
+        // Series exported by all rules of a scrape, 0 for no limit.
+        int maxTotalSeries;
+        // The rule fetching the datapoints of each rule merged with others, see planFetches.
+        Map<MetricRule, MetricRule> fetchRules = Collections.emptyMap();
+        // Scrapes and polls using this config, plus one while it is active.
+        final AtomicInteger users = new AtomicInteger(1);
+    }
+
+    /**
+     * A region and account to collect from, each with its own client and rate limits.
+     */
+    static class Target {
+      final String region;
+      final String roleArn;
+      final String accountId;
+      // Overrides the regional CloudWatch endpoint if set.
+      final String endpointUrl;
+      // Only configured targets add region and account_id labels, for compatibility with single region configs.
+      final boolean labelled;
+      AmazonCloudWatchClient client;
+      // Replaced when requests_per_second changes on reload.
+      volatile Map<String, RateLimiter> rateLimiters;
+
+      Target(String region, String roleArn, String accountId, String endpointUrl, boolean labelled) {
+        this.region = region;
+        this.roleArn = roleArn;
+        this.accountId = accountId;
+        this.endpointUrl = endpointUrl;
+        this.labelled = labelled;
+      }
 
-        @Override
-        public Object clone() throws CloneNotSupportedException {
-            return super.clone();
+      @Override
+      public boolean equals(Object o) {
+        if (!(o instanceof Target)) {
+          return false;
         }
+        Target other = (Target) o;
+        return region.equals(other.region)
+            && (roleArn == null ? other.roleArn == null : roleArn.equals(other.roleArn))
+            && accountId.equals(other.accountId)
+            && (endpointUrl == null ? other.endpointUrl == null : endpointUrl.equals(other.endpointUrl))
+            && labelled == other.labelled;
+      }
+
+      @Override
+      public int hashCode() {
+        return Arrays.hashCode(new Object[]{region, roleArn, accountId, endpointUrl, labelled});
+      }
     }
 
-    static class MetricRule {
+    static class MetricRule implements Cloneable {
+      Target target;
       String awsNamespace;
       String awsMetricName;
       int periodSeconds;
       int rangeSeconds;
       int delaySeconds;
+      int refreshSeconds;
       List<String> awsStatistics;
       List<String> awsExtendedStatistics;
       List<String> awsDimensions;
-      Map<String,List<String>> awsDimensionSelect;
-      Map<String,List<String>> awsDimensionSelectRegex;
+      Map<String,Set<String>> awsDimensionSelect;
+      Map<String,List<Pattern>> awsDimensionSelectRegex;
       String help;
+      int maxConcurrency;
+      boolean useGetMetricData;
+      boolean incrementalFetch;
+      boolean setTimestamp;
+      // This instance collects the rule, or its dimension sets, that hash to shardIndex of shardCount.
+      int shardCount;
+      int shardIndex;
+      boolean shardByDimensions;
+      // Dimension sets fetched and series exported for the rule, 0 for no limit, and what to do beyond them.
+      int maxDimensionSets;
+      int maxSeries;
+      String cardinalityPolicy;
+      // Names precomputed from the above, so scrapes don't redo the regex work.
+      String baseName;
+      Map<String, String> metricNames;
+      // The job and instance labels, followed by the region and account_id ones if the target is labelled.
+      List<String> labelPrefixNames;
+      List<String> labelPrefixValues;
+      Map<String, String> labelNames;
+
+      @Override
+      public Object clone() throws CloneNotSupportedException {
+          return super.clone();
+      }
+    }
+
+    /**
+     * Where the result of one GetMetricData query is to be stored.
+     */
+    static class MetricDataTarget {
+      final RuleScrape ruleScrape;
+      final int index;
+      final String statistic;
+      final boolean extended;
+      // Of the value stored so far, as a query's results may span pages.
+      Date timestamp;
+
+      MetricDataTarget(RuleScrape ruleScrape, int index, String statistic, boolean extended) {
+        this.ruleScrape = ruleScrape;
+        this.index = index;
+        this.statistic = statistic;
+        this.extended = extended;
+      }
+    }
+
+    /**
+     * Up to MAX_METRIC_DATA_QUERIES queries sharing one time window, sent as a single GetMetricData call.
+     */
+    static class MetricDataBatch {
+      final Target target;
+      final int delaySeconds;
+      final int rangeSeconds;
+      final List<MetricDataQuery> queries = new ArrayList<MetricDataQuery>();
+      final List<MetricDataTarget> targets = new ArrayList<MetricDataTarget>();
+      final Set<RuleScrape> ruleScrapes = new LinkedHashSet<RuleScrape>();
+      // The namespace of all the queries, or "" if they have different ones.
+      String namespace;
+
+      MetricDataBatch(Target target, int delaySeconds, int rangeSeconds) {
+        this.target = target;
+        this.delaySeconds = delaySeconds;
+        this.rangeSeconds = rangeSeconds;
+      }
+    }
+
+    static final int MAX_METRIC_DATA_QUERIES = 500;
+
+    /**
+     * The progress of one rule through a scrape.
+     * A failure only affects the rules it happened for, the other rules are still exported.
+     */
+    static class RuleScrape {
+      final MetricRule rule;
+      final long start;
+      // Reused from an earlier scrape, as no new period has closed since.
+      boolean cached;
+      // The scrape of the merged rule fetching the datapoints of this one, if any.
+      RuleScrape source;
+      List<List<Dimension>> dimensions;
+      Datapoint[] datapoints;
+      // Set by the task that ran the ListMetrics query of the rule, or by the scrape thread.
+      volatile List<Future<Void>> futures = Collections.emptyList();
+      volatile Exception error;
+      final AtomicLong nanos = new AtomicLong();
+
+      RuleScrape(MetricRule rule, long start) {
+        this.rule = rule;
+        this.start = start;
+      }
+
+      void fail(Exception e) {
+        if (error == null) {
+          error = e;
+        }
+      }
+    }
+
+    /**
+     * The families of a rule from its last successful background poll.
+     */
+    static class RuleSnapshot {
+      final List<MetricFamilySamples> mfs;
+      final long timestamp;
+      final boolean failed;
+
+      RuleSnapshot(List<MetricFamilySamples> mfs, long timestamp, boolean failed) {
+        this.mfs = mfs;
+        this.timestamp = timestamp;
+        this.failed = failed;
+      }
+    }
+
+    /**
+     * Receives the samples of a scrape. The samples of a metric family are passed consecutively.
+     * The label values are the given prefix followed by the dimension values.
+     * The timestamp is null unless `set_timestamp` is enabled.
+     */
+    interface SampleSink {
+      void sample(String name, String help, List<String> labelNames, List<String> labelPrefix, List<Dimension> dimensions, double value, Long timestampMs) throws IOException;
+      void metricFamily(MetricFamilySamples mfs) throws IOException;
+    }
+
+    /**
+     * Passes samples on to another sink, timing how long it takes with them.
+     */
+    static class TimedSink implements SampleSink {
+      private final SampleSink sink;
+      long nanos;
+
+      TimedSink(SampleSink sink) {
+        this.sink = sink;
+      }
+
+      public void sample(String name, String help, List<String> labelNames, List<String> labelPrefix, List<Dimension> dimensions, double value, Long timestampMs) throws IOException {
+        long start = System.nanoTime();
+        sink.sample(name, help, labelNames, labelPrefix, dimensions, value, timestampMs);
+        nanos += System.nanoTime() - start;
+      }
+
+      public void metricFamily(MetricFamilySamples mfs) throws IOException {
+        long start = System.nanoTime();
+        sink.metricFamily(mfs);
+        nanos += System.nanoTime() - start;
+      }
+    }
+
+    /**
+     * Collects samples into MetricFamilySamples, for the registry.
+     */
+    static class MetricFamilySamplesSink implements SampleSink {
+      final List<MetricFamilySamples> mfs;
+      private String name;
+      private List<MetricFamilySamples.Sample> samples;
+      // The statistics of a dimension set share their label values.
+      private final Map<List<Dimension>, List<String>> labelValues = new IdentityHashMap<List<Dimension>, List<String>>();
+
+      MetricFamilySamplesSink(List<MetricFamilySamples> mfs) {
+        this.mfs = mfs;
+      }
+
+      // The registry's samples have no timestamps, so they are dropped.
+      public void sample(String name, String help, List<String> labelNames, List<String> labelPrefix, List<Dimension> dimensions, double value, Long timestampMs) {
+        if (!name.equals(this.name)) {
+          this.name = name;
+          samples = new ArrayList<MetricFamilySamples.Sample>();
+          mfs.add(new MetricFamilySamples(name, Type.GAUGE, help, samples));
+        }
+        List<String> values = labelValues.get(dimensions);
+        if (values == null) {
+          values = new ArrayList<String>(labelPrefix.size() + dimensions.size());
+          values.addAll(labelPrefix);
+          for (Dimension d: dimensions) {
+            values.add(d.getValue());
+          }
+          labelValues.put(dimensions, values);
+        }
+        samples.add(new MetricFamilySamples.Sample(name, labelNames, values, value));
+      }
+
+      public void metricFamily(MetricFamilySamples family) {
+        name = null;
+        mfs.add(family);
+      }
     }
 
-    ActiveConfig activeConfig = new ActiveConfig();
+    final AtomicReference<ActiveConfig> activeConfig = new AtomicReference<ActiveConfig>();
+    // Configs still in use by a scrape or poll, and clients no longer configured which may still be used by them.
+    private final Set<ActiveConfig> liveConfigs = new HashSet<ActiveConfig>();
+    private final Set<AmazonCloudWatchClient> retiredClients = new HashSet<AmazonCloudWatchClient>();
+    private ThreadPoolExecutor executor;
+    private final DimensionCache dimensionCache = new DimensionCache();
+    private final Random random = new Random();
+    // The running scrape that collects join, or the last one while it is cached.
+    SharedScrape sharedScrape;
+    private final Object sharedScrapeLock = new Object();
+    private ScheduledThreadPoolExecutor scheduler;
+    private final Map<MetricRule, ScheduledFuture<?>> polls = new HashMap<MetricRule, ScheduledFuture<?>>();
+    final ConcurrentHashMap<MetricRule, RuleSnapshot> snapshots = new ConcurrentHashMap<MetricRule, RuleSnapshot>();
+    // Clients are kept across reloads, so that their connections and assumed role credentials are reused.
+    private final ConcurrentHashMap<Target, AmazonCloudWatchClient> clients = new ConcurrentHashMap<Target, AmazonCloudWatchClient>();
+    // The last successful scrape of each rule, reused until its refresh_seconds are up.
+    private final ConcurrentHashMap<MetricRule, RuleScrape> lastRuleScrapes = new ConcurrentHashMap<MetricRule, RuleScrape>();
+    // Scrapes restored from a snapshot, served until the warm up scrape has fetched fresh ones.
+    private final ConcurrentHashMap<MetricRule, RuleScrape> restoredRuleScrapes = new ConcurrentHashMap<MetricRule, RuleScrape>();
+    private boolean snapshotRestored;
+    private ScheduledExecutorService snapshotSaver;
+    private ScheduledFuture<?> snapshotSave;
+    private int snapshotSaveIntervalSeconds;
+    // The last datapoint fetched for each dimension set of a rule, for incremental_fetch.
+    private final ConcurrentHashMap<MetricRule, ConcurrentHashMap<List<Dimension>, Datapoint>> lastDatapoints =
+        new ConcurrentHashMap<MetricRule, ConcurrentHashMap<List<Dimension>, Datapoint>>();
+    // All datapoints within range of each dimension set of a rule, oldest first, for backfill.
+    private final ConcurrentHashMap<MetricRule, ConcurrentHashMap<List<Dimension>, List<Datapoint>>> backfillDatapoints =
+        new ConcurrentHashMap<MetricRule, ConcurrentHashMap<List<Dimension>, List<Datapoint>>>();
 
     private static final Counter cloudwatchRequests = Counter.build()
       .name("cloudwatch_requests_total").help("API requests made to CloudWatch").register();
 
+    private static final Counter rateLimitWait = Counter.build()
+      .name("cloudwatch_exporter_rate_limit_wait_seconds_total").labelNames("api")
+      .help("Time spent waiting for the CloudWatch API rate limit, in seconds.").register();
+    private static final Counter throttleRetries = Counter.build()
+      .name("cloudwatch_exporter_throttle_retries_total").labelNames("api")
+      .help("CloudWatch API requests retried after being throttled.").register();
+
+    private static final Histogram apiRequestDuration = Histogram.build()
+      .name("cloudwatch_exporter_api_request_duration_seconds").labelNames("api", "namespace")
+      .help("Latency of CloudWatch API requests, including those that failed, in seconds.").register();
+    private static final Gauge apiRequestsInFlight = Gauge.build()
+      .name("cloudwatch_exporter_api_requests_in_flight").labelNames("api")
+      .help("CloudWatch API requests currently in flight.").register();
+    private static final Counter apiResponseBytes = Counter.build()
+      .name("cloudwatch_exporter_api_response_bytes_total").labelNames("api")
+      .help("Size of the bodies of CloudWatch API responses, in bytes.").register();
+    private static final Counter datapointsReceived = Counter.build()
+      .name("cloudwatch_exporter_datapoints_received_total").labelNames("api", "namespace")
+      .help("Datapoints returned by CloudWatch.").register();
+    private static final Counter phaseSeconds = Counter.build()
+      .name("cloudwatch_exporter_phase_seconds_total").labelNames("phase")
+      .help("Time spent in each phase of scrapes, summed over all threads, in seconds. The phases are discovery with ListMetrics, fetch of datapoints, assembly of samples and serialization of samples by the output format.").register();
+
+    private static final Counter coalescedScrapes = Counter.build()
+      .name("cloudwatch_exporter_coalesced_scrapes_total")
+      .help("Scrapes served by a concurrent or cached scrape rather than their own.").register();
+
+    private static final Counter ruleErrors = Counter.build()
+      .name("cloudwatch_exporter_rule_errors_total").labelNames("region", "account_id", "namespace", "metric_name")
+      .help("Scrapes of a metric that failed.").register();
+    private static final Gauge ruleDuration = Gauge.build()
+      .name("cloudwatch_exporter_rule_duration_seconds").labelNames("region", "account_id", "namespace", "metric_name")
+      .help("Time spent on requests and processing for the last successful scrape of a metric, in seconds.").register();
+    private static final Gauge ruleLastSuccess = Gauge.build()
+      .name("cloudwatch_exporter_rule_last_success_timestamp_seconds").labelNames("region", "account_id", "namespace", "metric_name")
+      .help("When a metric was last successfully scraped, in unixtime.").register();
+    private static final Counter droppedDimensionSets = Counter.build()
+      .name("cloudwatch_exporter_dropped_dimension_sets_total").labelNames("region", "account_id", "namespace", "metric_name")
+      .help("Dimension sets of a metric not fetched because of max_dimension_sets.").register();
+    private static final Counter droppedSeries = Counter.build()
+      .name("cloudwatch_exporter_dropped_series_total").labelNames("region", "account_id", "namespace", "metric_name")
+      .help("Series of a metric not exported because of max_series or max_total_series.").register();
+
+    static final List<String> RATE_LIMITED_APIS = Arrays.asList("ListMetrics", "GetMetricStatistics", "GetMetricData");
+    static final long THROTTLE_BACKOFF_BASE_MILLIS = 100;
+    static final long MAX_THROTTLE_BACKOFF_MILLIS = 20000;
+    static final int DEFAULT_MAX_THROTTLE_RETRIES = 3;
+    // The SDK's default retries, except for throttled requests which callCloudWatch retries through the rate limiter.
+    static final RetryPolicy SDK_RETRY_POLICY = new RetryPolicy(new RetryPolicy.RetryCondition() {
+          public boolean shouldRetry(AmazonWebServiceRequest request, AmazonClientException exception, int retries) {
+            return !RetryUtils.isThrottlingException(exception)
+                && PredefinedRetryPolicies.DEFAULT_RETRY_CONDITION.shouldRetry(request, exception, retries);
+          }
+        }, PredefinedRetryPolicies.DEFAULT_BACKOFF_STRATEGY, PredefinedRetryPolicies.DEFAULT_MAX_ERROR_RETRY, true);
+
+    private static final Counter nameCacheHits = Counter.build()
+      .name("cloudwatch_exporter_name_cache_hits_total").help("Metric and label name conversions served from the cache.").register();
+    private static final Counter nameCacheMisses = Counter.build()
+      .name("cloudwatch_exporter_name_cache_misses_total").help("Metric and label name conversions that had to be computed.").register();
+
+    static final List<String> CARDINALITY_POLICIES = Arrays.asList("truncate", "top_k", "fail");
+    static final List<String> STATISTICS = Arrays.asList("Sum", "SampleCount", "Minimum", "Maximum", "Average");
+
+    static final int NAME_CACHE_SIZE = 10000;
+    private static final ConcurrentHashMap<String, String> nameCache = new ConcurrentHashMap<String, String>();
+
+    private static final Pattern BACKREFERENCE = Pattern.compile("\\\\([1-9]|k<)");
+    private static final Pattern CAMEL_CASE = Pattern.compile("([a-z0-9])([A-Z])");
+    private static final Pattern INVALID_NAME_CHARS = Pattern.compile("[^a-zA-Z0-9:_]");
+    private static final Pattern REPEATED_UNDERSCORES = Pattern.compile("__+");
+
     private static final List<String> brokenDynamoMetrics = Arrays.asList(
             "ConsumedReadCapacityUnits", "ConsumedWriteCapacityUnits",
             "ProvisionedReadCapacityUnits", "ProvisionedWriteCapacityUnits",
@@ -87,7 +470,7 @@ public class CloudWatchCollector extends Collector {
     protected void reloadConfig() throws IOException {
         LOGGER.log(Level.INFO, "Reloading configuration");
 
-        loadConfig(new FileReader(WebServer.configFilePath), activeConfig.client);
+        loadConfig(new FileReader(WebServer.configFilePath), activeConfig.get().client);
     }
 
     protected void loadConfig(Reader in, AmazonCloudWatchClient client) throws IOException {
@@ -97,8 +480,8 @@ public class CloudWatchCollector extends Collector {
         if(config == null) {  // Yaml config empty, set config to empty map.
             config = new HashMap<String, Object>();
         }
-        if (!config.containsKey("region")) {
-          throw new IllegalArgumentException("Must provide region");
+        if (!config.containsKey("region") && !config.containsKey("targets")) {
+          throw new IllegalArgumentException("Must provide region or targets");
         }
 
         int defaultPeriod = 60;
@@ -113,19 +496,125 @@ public class CloudWatchCollector extends Collector {
         if (config.containsKey("delay_seconds")) {
           defaultDelay = ((Number)config.get("delay_seconds")).intValue();
         }
+        ActiveConfig newConfig = new ActiveConfig();
+        int maxConcurrency = 1;
+        if (config.containsKey("max_concurrency")) {
+          maxConcurrency = ((Number)config.get("max_concurrency")).intValue();
+          if (maxConcurrency < 1) {
+            throw new IllegalArgumentException("max_concurrency must be at least 1");
+          }
+        }
+        if (config.containsKey("dimensions_cache_ttl_seconds")) {
+          newConfig.dimensionsCacheTtlSeconds = ((Number)config.get("dimensions_cache_ttl_seconds")).intValue();
+        }
+        if (config.containsKey("background_polling")) {
+          newConfig.backgroundPolling = (Boolean)config.get("background_polling");
+        }
+        if (config.containsKey("list_metrics_per_namespace")) {
+          newConfig.listMetricsPerNamespace = (Boolean)config.get("list_metrics_per_namespace");
+        }
+        if (config.containsKey("scrape_cache_seconds")) {
+          newConfig.scrapeCacheSeconds = ((Number)config.get("scrape_cache_seconds")).intValue();
+        }
+        if (config.containsKey("snapshot_file")) {
+          newConfig.snapshotFile = (String)config.get("snapshot_file");
+        }
+        newConfig.snapshotIntervalSeconds = 60;
+        if (config.containsKey("snapshot_interval_seconds")) {
+          newConfig.snapshotIntervalSeconds = ((Number)config.get("snapshot_interval_seconds")).intValue();
+          if (newConfig.snapshotIntervalSeconds < 1) {
+            throw new IllegalArgumentException("snapshot_interval_seconds must be at least 1");
+          }
+        }
+        if (config.containsKey("backfill")) {
+          newConfig.backfill = (Boolean)config.get("backfill");
+        }
+        Map<String, Double> requestsPerSecond = new HashMap<String, Double>();
+        if (config.containsKey("requests_per_second")) {
+          for (Map.Entry<String, Object> entry: ((Map<String, Object>)config.get("requests_per_second")).entrySet()) {
+            if (!RATE_LIMITED_APIS.contains(entry.getKey())) {
+              throw new IllegalArgumentException("requests_per_second can only be set for " + RATE_LIMITED_APIS);
+            }
+            requestsPerSecond.put(entry.getKey(), ((Number)entry.getValue()).doubleValue());
+          }
+        }
+        newConfig.maxThrottleRetries = DEFAULT_MAX_THROTTLE_RETRIES;
+        if (config.containsKey("max_throttle_retries")) {
+          newConfig.maxThrottleRetries = ((Number)config.get("max_throttle_retries")).intValue();
+        }
+        boolean defaultUseGetMetricData = false;
+        if (config.containsKey("use_get_metric_data")) {
+          defaultUseGetMetricData = (Boolean)config.get("use_get_metric_data");
+        }
+        boolean defaultSetTimestamp = false;
+        if (config.containsKey("set_timestamp")) {
+          defaultSetTimestamp = (Boolean)config.get("set_timestamp");
+        }
+        int shardCount = 1;
+        if (config.containsKey("shard_count")) {
+          shardCount = ((Number)config.get("shard_count")).intValue();
+          if (shardCount < 1) {
+            throw new IllegalArgumentException("shard_count must be at least 1");
+          }
+        }
+        int shardIndex = 0;
+        if (config.containsKey("shard_index")) {
+          shardIndex = ((Number)config.get("shard_index")).intValue();
+          if (shardIndex < 0 || shardIndex >= shardCount) {
+            throw new IllegalArgumentException("shard_index must be at least 0 and less than shard_count");
+          }
+        }
+        boolean defaultShardByDimensions = false;
+        if (config.containsKey("shard_by_dimensions")) {
+          defaultShardByDimensions = (Boolean)config.get("shard_by_dimensions");
+        }
+        Integer defaultRefresh = null;
+        if (config.containsKey("refresh_seconds")) {
+          defaultRefresh = ((Number)config.get("refresh_seconds")).intValue();
+        }
+        boolean defaultIncrementalFetch = true;
+        if (config.containsKey("incremental_fetch")) {
+          defaultIncrementalFetch = (Boolean)config.get("incremental_fetch");
+        }
+        int defaultMaxDimensionSets = 0;
+        if (config.containsKey("max_dimension_sets")) {
+          defaultMaxDimensionSets = ((Number)config.get("max_dimension_sets")).intValue();
+        }
+        int defaultMaxSeries = 0;
+        if (config.containsKey("max_series")) {
+          defaultMaxSeries = ((Number)config.get("max_series")).intValue();
+        }
+        if (config.containsKey("max_total_series")) {
+          newConfig.maxTotalSeries = ((Number)config.get("max_total_series")).intValue();
+        }
+        String defaultCardinalityPolicy = "truncate";
+        if (config.containsKey("cardinality_policy")) {
+          defaultCardinalityPolicy = (String)config.get("cardinality_policy");
+        }
 
-        if (client == null) {
-          if (config.containsKey("role_arn")) {
-            STSAssumeRoleSessionCredentialsProvider credentialsProvider = new STSAssumeRoleSessionCredentialsProvider(
-              (String) config.get("role_arn"),
-              "cloudwatch_exporter"
-            );
-            client = new AmazonCloudWatchClient(credentialsProvider);
-          } else {
-            client = new AmazonCloudWatchClient();
+        String defaultEndpointUrl = (String) config.get("endpoint_url");
+        List<Target> targets = new ArrayList<Target>();
+        if (config.containsKey("targets")) {
+          for (Map<String, Object> yamlTarget: (List<Map<String, Object>>) config.get("targets")) {
+            if (!yamlTarget.containsKey("region")) {
+              throw new IllegalArgumentException("Must provide region for each target");
+            }
+            String endpointUrl = yamlTarget.containsKey("endpoint_url") ? (String) yamlTarget.get("endpoint_url") : defaultEndpointUrl;
+            targets.add(newTarget((String) yamlTarget.get("region"), (String) yamlTarget.get("role_arn"),
+                (String) yamlTarget.get("account_id"), endpointUrl, true));
+          }
+          if (targets.isEmpty()) {
+            throw new IllegalArgumentException("Must provide at least one target");
+          }
+        } else {
+          targets.add(newTarget((String) config.get("region"), (String) config.get("role_arn"),
+              (String) config.get("account_id"), defaultEndpointUrl, false));
+        }
+        // Checked up front, as creating a client for an unknown region would fail while activating the config.
+        for (Target target: targets) {
+          if (client == null && target.endpointUrl == null && RegionUtils.getRegion(target.region) == null) {
+            throw new IllegalArgumentException("Unknown region " + target.region + ", set a region or endpoint_url");
           }
-          Region region = RegionUtils.getRegion((String) config.get("region"));
-          client.setEndpoint(getMonitoringEndpoint(region));
         }
 
         if (!config.containsKey("metrics")) {
@@ -153,10 +642,20 @@ public class CloudWatchCollector extends Collector {
             throw new IllegalArgumentException("Must not provide aws_dimension_select and aws_dimension_select_regex at the same time");
           }
           if (yamlMetricRule.containsKey("aws_dimension_select")) {
-            rule.awsDimensionSelect = (Map<String, List<String>>)yamlMetricRule.get("aws_dimension_select");
+            rule.awsDimensionSelect = new HashMap<String, Set<String>>();
+            for (Map.Entry<String, List<Object>> entry: ((Map<String, List<Object>>)yamlMetricRule.get("aws_dimension_select")).entrySet()) {
+              Set<String> values = new HashSet<String>();
+              for (Object value: entry.getValue()) {
+                values.add(String.valueOf(value));
+              }
+              rule.awsDimensionSelect.put(entry.getKey(), values);
+            }
           }
           if (yamlMetricRule.containsKey("aws_dimension_select_regex")) {
-            rule.awsDimensionSelectRegex = (Map<String,List<String>>)yamlMetricRule.get("aws_dimension_select_regex");
+            rule.awsDimensionSelectRegex = new HashMap<String, List<Pattern>>();
+            for (Map.Entry<String, List<String>> entry: ((Map<String, List<String>>)yamlMetricRule.get("aws_dimension_select_regex")).entrySet()) {
+              rule.awsDimensionSelectRegex.put(entry.getKey(), compileRegexList(entry.getValue()));
+            }
           }
           if (yamlMetricRule.containsKey("aws_statistics")) {
             rule.awsStatistics = (List<String>)yamlMetricRule.get("aws_statistics");
@@ -181,266 +680,1958 @@ public class CloudWatchCollector extends Collector {
           } else {
             rule.delaySeconds = defaultDelay;
           }
+          if (yamlMetricRule.containsKey("refresh_seconds")) {
+            rule.refreshSeconds = ((Number)yamlMetricRule.get("refresh_seconds")).intValue();
+          } else if (defaultRefresh != null) {
+            rule.refreshSeconds = defaultRefresh;
+          } else {
+            rule.refreshSeconds = rule.periodSeconds;
+          }
+          if (yamlMetricRule.containsKey("max_concurrency")) {
+            rule.maxConcurrency = ((Number)yamlMetricRule.get("max_concurrency")).intValue();
+            if (rule.maxConcurrency < 1) {
+              throw new IllegalArgumentException("max_concurrency must be at least 1");
+            }
+          }
+          if (yamlMetricRule.containsKey("use_get_metric_data")) {
+            rule.useGetMetricData = (Boolean)yamlMetricRule.get("use_get_metric_data");
+          } else {
+            rule.useGetMetricData = defaultUseGetMetricData;
+          }
+          if (yamlMetricRule.containsKey("incremental_fetch")) {
+            rule.incrementalFetch = (Boolean)yamlMetricRule.get("incremental_fetch");
+          } else {
+            rule.incrementalFetch = defaultIncrementalFetch;
+          }
+          if (yamlMetricRule.containsKey("set_timestamp")) {
+            rule.setTimestamp = (Boolean)yamlMetricRule.get("set_timestamp");
+          } else {
+            rule.setTimestamp = defaultSetTimestamp;
+          }
+          if (yamlMetricRule.containsKey("shard_by_dimensions")) {
+            rule.shardByDimensions = (Boolean)yamlMetricRule.get("shard_by_dimensions");
+          } else {
+            rule.shardByDimensions = defaultShardByDimensions;
+          }
+          if (yamlMetricRule.containsKey("max_dimension_sets")) {
+            rule.maxDimensionSets = ((Number)yamlMetricRule.get("max_dimension_sets")).intValue();
+          } else {
+            rule.maxDimensionSets = defaultMaxDimensionSets;
+          }
+          if (yamlMetricRule.containsKey("max_series")) {
+            rule.maxSeries = ((Number)yamlMetricRule.get("max_series")).intValue();
+          } else {
+            rule.maxSeries = defaultMaxSeries;
+          }
+          if (yamlMetricRule.containsKey("cardinality_policy")) {
+            rule.cardinalityPolicy = (String)yamlMetricRule.get("cardinality_policy");
+          } else {
+            rule.cardinalityPolicy = defaultCardinalityPolicy;
+          }
+          if (!CARDINALITY_POLICIES.contains(rule.cardinalityPolicy)) {
+            throw new IllegalArgumentException("cardinality_policy must be one of " + CARDINALITY_POLICIES);
+          }
+          rule.shardCount = shardCount;
+          rule.shardIndex = shardIndex;
         }
 
-        loadConfig(rules, client);
-    }
-
-    private void loadConfig(ArrayList<MetricRule> rules, AmazonCloudWatchClient client) {
-        synchronized (activeConfig) {
-            activeConfig.client = client;
-            activeConfig.rules = rules;
+        // Each rule is collected from every target. Copies of a rule are kept together,
+        // so that samples for the same metric are output together.
+        ArrayList<MetricRule> targetRules = new ArrayList<MetricRule>();
+        for (MetricRule rule: rules) {
+          for (Target target: targets) {
+            MetricRule targetRule;
+            try {
+              targetRule = (MetricRule) rule.clone();
+            } catch (CloneNotSupportedException e) {
+              throw new IllegalStateException(e);
+            }
+            targetRule.target = target;
+            // Rules without aws_dimensions have a single dimension set, so they are sharded as a whole.
+            if ((!targetRule.shardByDimensions || targetRule.awsDimensions == null) && !inShard(targetRule, null)) {
+              continue;
+            }
+            computeNames(targetRule);
+            targetRules.add(targetRule);
+          }
         }
-    }
 
-    public String getMonitoringEndpoint(Region region) {
-      return "https://" + region.getServiceEndpoint("monitoring");
+        newConfig.rules = targetRules;
+        newConfig.targets = targets;
+        newConfig.client = client;
+        newConfig.requestsPerSecond = requestsPerSecond;
+        loadConfig(newConfig, maxConcurrency);
     }
 
-    private List<List<Dimension>> getDimensions(MetricRule rule, AmazonCloudWatchClient client) {
-      List<List<Dimension>> dimensions = new ArrayList<List<Dimension>>();
-      if (rule.awsDimensions == null) {
-        dimensions.add(new ArrayList<Dimension>());
-        return dimensions;
-      }
+    /**
+     * Activates a parsed config. Targets and rules that are unchanged from the active config are kept,
+     * along with their clients, rate limits, dimension caches, fetched datapoints and background polls.
+     * Scrapes already running finish with the config they started with.
+     */
+    private synchronized void loadConfig(ActiveConfig newConfig, int maxConcurrency) {
+        ActiveConfig oldConfig = activeConfig.get();
+        Map<Target, Target> oldTargets = new HashMap<Target, Target>();
+        Map<List<Object>, MetricRule> oldRules = new HashMap<List<Object>, MetricRule>();
+        if (oldConfig != null) {
+          for (Target target: oldConfig.targets) {
+            oldTargets.put(target, target);
+          }
+          for (MetricRule rule: oldConfig.rules) {
+            oldRules.put(ruleKey(rule), rule);
+          }
+        }
 
-      ListMetricsRequest request = new ListMetricsRequest();
-      request.setNamespace(rule.awsNamespace);
-      request.setMetricName(rule.awsMetricName);
-      List<DimensionFilter> dimensionFilters = new ArrayList<DimensionFilter>();
-      for (String dimension: rule.awsDimensions) {
-        dimensionFilters.add(new DimensionFilter().withName(dimension));
-      }
-      request.setDimensions(dimensionFilters);
+        Map<Target, Target> targets = new LinkedHashMap<Target, Target>();
+        // Kept targets are still in use by the active config, so their new rate limits are only set once activated.
+        Map<Target, Map<String, RateLimiter>> keptRateLimiters = new HashMap<Target, Map<String, RateLimiter>>();
+        List<Target> newClients = new ArrayList<Target>();
+        try {
+          for (Target target: newConfig.targets) {
+            Target oldTarget = oldTargets.get(target);
+            if (oldTarget != null && oldTarget.client == (newConfig.client != null ? newConfig.client : clients.get(oldTarget))) {
+              if (!newConfig.requestsPerSecond.equals(oldConfig.requestsPerSecond)) {
+                keptRateLimiters.put(oldTarget, newRateLimiters(newConfig.requestsPerSecond));
+              }
+              target = oldTarget;
+            } else {
+              if (newConfig.client != null) {
+                target.client = newConfig.client;
+              } else {
+                if (!clients.containsKey(target)) {
+                  newClients.add(target);
+                }
+                target.client = getClient(target, maxConcurrency);
+              }
+              target.rateLimiters = newRateLimiters(newConfig.requestsPerSecond);
+            }
+            targets.put(target, target);
+          }
+          newConfig.targets = new ArrayList<Target>(targets.keySet());
 
-      String nextToken = null;
-      do {
-        request.setNextToken(nextToken);
-        ListMetricsResult result = client.listMetrics(request);
-        cloudwatchRequests.inc();
-        for (Metric metric: result.getMetrics()) {
-          if (metric.getDimensions().size() != dimensionFilters.size()) {
-            // AWS returns all the metrics with dimensions beyond the ones we ask for,
-            // so filter them out.
-            continue;
+          List<MetricRule> rules = new ArrayList<MetricRule>();
+          for (MetricRule rule: newConfig.rules) {
+            rule.target = targets.get(rule.target);
+            MetricRule oldRule = oldRules.remove(ruleKey(rule));
+            rules.add(oldRule != null && oldRule.target == rule.target ? oldRule : rule);
           }
-          if (useMetric(rule, metric)) {
-            dimensions.add(metric.getDimensions());
+          newConfig.rules = rules;
+          newConfig.fetchRules = planFetches(rules, oldConfig, newConfig.backgroundPolling);
+          newConfig.executor = maxConcurrency > 1 ? getExecutor(maxConcurrency) : null;
+        } catch (RuntimeException e) {
+          // The active config stays as it was, without the clients made for this one.
+          for (Target target: newClients) {
+            AmazonCloudWatchClient client = clients.remove(target);
+            if (client != null) {
+              client.shutdown();
+            }
           }
+          throw e;
         }
-        nextToken = result.getNextToken();
-      } while (nextToken != null);
 
-      return dimensions;
+        synchronized (liveConfigs) {
+          Set<Target> removed = new HashSet<Target>(clients.keySet());
+          removed.removeAll(targets.keySet());
+          for (Target target: removed) {
+            retiredClients.add(clients.remove(target));
+          }
+          liveConfigs.add(newConfig);
+        }
+        activeConfig.set(newConfig);
+        for (Map.Entry<Target, Map<String, RateLimiter>> entry: keptRateLimiters.entrySet()) {
+          entry.getKey().rateLimiters = entry.getValue();
+        }
+        scheduleSnapshots(newConfig);
+        schedulePolls(newConfig, newConfig.backgroundPolling ? maxConcurrency : 0);
+        if (oldConfig != null) {
+          releaseConfig(oldConfig);
+        }
     }
 
     /**
-     * Check if a metric should be used according to `aws_dimension_select` or `aws_dimension_select_regex`
+     * The settings of a rule, which if unchanged on reload mean the rule is kept as is.
      */
-    private boolean useMetric(MetricRule rule, Metric metric) {
-      if (rule.awsDimensionSelect == null && rule.awsDimensionSelectRegex == null) {
-        return true;
-      }
-      if (rule.awsDimensionSelect != null  && metricsIsInAwsDimensionSelect(rule, metric)) {
-        return true;
-      }
-      if (rule.awsDimensionSelectRegex != null  && metricIsInAwsDimensionSelectRegex(rule, metric)) {
-        return true;
-      }
-      return false;
+    private static List<Object> ruleKey(MetricRule rule) {
+      return ruleKey(rule, false);
     }
 
     /**
-     * Check if a metric is matched in `aws_dimension_select`
+     * The settings that decide what a rule requests, other than its statistics.
+     */
+    private static List<Object> fetchKey(MetricRule rule) {
+      return ruleKey(rule, true);
+    }
+
+    /**
+     * With `fetchOnly`, the settings that only affect what is exported from the fetched datapoints are left out:
+     * the statistics, extended statistics, help, set_timestamp and max_series.
      */
-    private boolean metricsIsInAwsDimensionSelect(MetricRule rule, Metric metric) {
-      Set<String> dimensionSelectKeys = rule.awsDimensionSelect.keySet();
-      for (Dimension dimension : metric.getDimensions()) {
-        String dimensionName = dimension.getName();
-        String dimensionValue = dimension.getValue();
-        if (dimensionSelectKeys.contains(dimensionName)) {
-          List<String> allowedDimensionValues = rule.awsDimensionSelect.get(dimensionName);
-          if (!allowedDimensionValues.contains(dimensionValue)) {
-            return false;
+    private static List<Object> ruleKey(MetricRule rule, boolean fetchOnly) {
+      Map<String, List<String>> selectRegex = null;
+      if (rule.awsDimensionSelectRegex != null) {
+        // Patterns don't implement equals.
+        selectRegex = new HashMap<String, List<String>>();
+        for (Map.Entry<String, List<Pattern>> entry: rule.awsDimensionSelectRegex.entrySet()) {
+          List<String> regexes = new ArrayList<String>();
+          for (Pattern pattern: entry.getValue()) {
+            regexes.add(pattern.pattern());
           }
+          selectRegex.put(entry.getKey(), regexes);
         }
       }
-      return true;
+      return Arrays.<Object>asList(rule.target, rule.awsNamespace, rule.awsMetricName, rule.periodSeconds,
+          rule.rangeSeconds, rule.delaySeconds, rule.refreshSeconds,
+          fetchOnly ? null : rule.awsStatistics, fetchOnly ? null : rule.awsExtendedStatistics, rule.awsDimensions,
+          rule.awsDimensionSelect, selectRegex, fetchOnly ? null : rule.help, rule.maxConcurrency, rule.useGetMetricData,
+          rule.incrementalFetch, fetchOnly ? null : rule.setTimestamp, rule.shardCount, rule.shardIndex, rule.shardByDimensions,
+          rule.maxDimensionSets, fetchOnly ? null : rule.maxSeries, rule.cardinalityPolicy);
     }
 
     /**
-     * Check if a metric is matched in `aws_dimension_select_regex`
+     * Merges rules which only differ in their statistics, help or set_timestamp, such as rules splitting up percentiles
+     * or giving statistics their own help, so that each dimension set is requested once with the union of their statistics.
+     * Returns the merged rule to fetch for each rule of such a group.
+     *
+     * Background polls are per rule, so rules are not merged with `background_polling`.
      */
-    private boolean metricIsInAwsDimensionSelectRegex(MetricRule rule, Metric metric) {
-      Set<String> dimensionSelectRegexKeys = rule.awsDimensionSelectRegex.keySet();
-      for (Dimension dimension : metric.getDimensions()) {
-        String dimensionName = dimension.getName();
-        String dimensionValue = dimension.getValue();
-        if (dimensionSelectRegexKeys.contains(dimensionName)) {
-          List<String> allowedDimensionValues = rule.awsDimensionSelectRegex.get(dimensionName);
-          if (!regexListMatch(allowedDimensionValues, dimensionValue)) {
-            return false;
+    private static Map<MetricRule, MetricRule> planFetches(List<MetricRule> rules, ActiveConfig oldConfig, boolean backgroundPolling) {
+      Map<MetricRule, MetricRule> fetchRules = new HashMap<MetricRule, MetricRule>();
+      if (backgroundPolling) {
+        return fetchRules;
+      }
+      Map<List<Object>, List<MetricRule>> groups = new LinkedHashMap<List<Object>, List<MetricRule>>();
+      for (MetricRule rule: rules) {
+        List<Object> key = fetchKey(rule);
+        List<MetricRule> group = groups.get(key);
+        if (group == null) {
+          group = new ArrayList<MetricRule>();
+          groups.put(key, group);
+        }
+        group.add(rule);
+      }
+      // Merged rules that are unchanged keep their incrementally fetched and backfill datapoints.
+      Map<List<Object>, MetricRule> oldFetchRules = new HashMap<List<Object>, MetricRule>();
+      if (oldConfig != null) {
+        for (MetricRule fetchRule: oldConfig.fetchRules.values()) {
+          oldFetchRules.put(ruleKey(fetchRule), fetchRule);
+        }
+      }
+
+      for (List<MetricRule> group: groups.values()) {
+        if (group.size() < 2) {
+          continue;
+        }
+        MetricRule fetchRule;
+        try {
+          fetchRule = (MetricRule) group.get(0).clone();
+        } catch (CloneNotSupportedException e) {
+          throw new IllegalStateException(e);
+        }
+        Set<String> statistics = new LinkedHashSet<String>();
+        Set<String> extendedStatistics = new LinkedHashSet<String>();
+        for (MetricRule rule: group) {
+          if (rule.awsStatistics != null) {
+            statistics.addAll(rule.awsStatistics);
           }
+          if (rule.awsExtendedStatistics != null) {
+            extendedStatistics.addAll(rule.awsExtendedStatistics);
+          }
+        }
+        fetchRule.awsStatistics = statistics.isEmpty() ? null : new ArrayList<String>(statistics);
+        fetchRule.awsExtendedStatistics = extendedStatistics.isEmpty() ? null : new ArrayList<String>(extendedStatistics);
+        fetchRule.help = null;
+        fetchRule.setTimestamp = false;
+        MetricRule oldFetchRule = oldFetchRules.get(ruleKey(fetchRule));
+        if (oldFetchRule != null && oldFetchRule.target == fetchRule.target) {
+          fetchRule = oldFetchRule;
+        }
+        for (MetricRule rule: group) {
+          fetchRules.put(rule, fetchRule);
         }
       }
-      return true;
+      return fetchRules;
+    }
+
+    private static Map<String, RateLimiter> newRateLimiters(Map<String, Double> requestsPerSecond) {
+      Map<String, RateLimiter> rateLimiters = new HashMap<String, RateLimiter>();
+      for (Map.Entry<String, Double> entry: requestsPerSecond.entrySet()) {
+        rateLimiters.put(entry.getKey(), new RateLimiter(entry.getValue()));
+      }
+      return rateLimiters;
     }
 
     /**
-     * Check if any regex string in a list matches a given input value
+     * Returns the active config, which must be released once done with.
      */
-    protected static boolean regexListMatch(List<String> regexList, String input) {
-      for (String regex: regexList) {
-        if (Pattern.matches(regex, input)) {
-          return true;
+    private ActiveConfig acquireConfig() {
+      while (true) {
+        ActiveConfig config = activeConfig.get();
+        int users = config.users.get();
+        // A config that is no longer in use may have had its clients shut down, so retry with the new one.
+        if (users > 0 && config.users.compareAndSet(users, users + 1)) {
+          return config;
         }
       }
-      return false;
     }
 
-    private Datapoint getNewestDatapoint(java.util.List<Datapoint> datapoints) {
-      Datapoint newest = null;
-      for (Datapoint d: datapoints) {
-        if (newest == null || newest.getTimestamp().before(d.getTimestamp())) {
-          newest = d;
+    /**
+     * Releases a config, shutting down the clients that are neither configured nor used by a running scrape anymore.
+     */
+    private void releaseConfig(ActiveConfig config) {
+      if (config.users.decrementAndGet() > 0) {
+        return;
+      }
+      synchronized (liveConfigs) {
+        liveConfigs.remove(config);
+        Set<AmazonCloudWatchClient> unused = new HashSet<AmazonCloudWatchClient>(retiredClients);
+        for (ActiveConfig live: liveConfigs) {
+          for (Target target: live.targets) {
+            unused.remove(target.client);
+          }
+        }
+        for (AmazonCloudWatchClient client: unused) {
+          client.shutdown();
         }
+        retiredClients.removeAll(unused);
       }
-      return newest;
     }
 
-    private String toSnakeCase(String str) {
-      return str.replaceAll("([a-z0-9])([A-Z])", "$1_$2").toLowerCase();
+    /**
+     * Restores the snapshot when first configured with a `snapshot_file`, and saves it every `snapshot_interval_seconds`
+     * as well as on shutdown.
+     */
+    private void scheduleSnapshots(ActiveConfig config) {
+      if (config.snapshotFile == null) {
+        if (snapshotSave != null) {
+          snapshotSave.cancel(false);
+          snapshotSave = null;
+        }
+        return;
+      }
+      if (!snapshotRestored) {
+        snapshotRestored = true;
+        restoreSnapshot(config);
+      }
+      if (snapshotSave != null && snapshotSaveIntervalSeconds == config.snapshotIntervalSeconds) {
+        return;
+      }
+      if (snapshotSave != null) {
+        snapshotSave.cancel(false);
+      }
+      if (snapshotSaver == null) {
+        snapshotSaver = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory());
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+          public void run() {
+            saveSnapshot();
+          }
+        });
+      }
+      snapshotSaveIntervalSeconds = config.snapshotIntervalSeconds;
+      snapshotSave = snapshotSaver.scheduleAtFixedRate(new Runnable() {
+        public void run() {
+          saveSnapshot();
+        }
+      }, snapshotSaveIntervalSeconds, snapshotSaveIntervalSeconds, TimeUnit.SECONDS);
     }
 
-    private String safeName(String s) {
-      // Change invalid chars to underscore, and merge underscores.
-      return s.replaceAll("[^a-zA-Z0-9:_]", "_").replaceAll("__+", "_");
+    /**
+     * Identifies a rule in a snapshot by its settings, so that the snapshot can be restored into a newly loaded config.
+     */
+    private static String snapshotKey(MetricRule rule) {
+      List<Object> key = new ArrayList<Object>(ruleKey(rule));
+      key.set(0, Arrays.asList(rule.target.region, rule.target.roleArn, rule.target.accountId, rule.target.endpointUrl, rule.target.labelled));
+      return key.toString();
     }
 
-    private String help(MetricRule rule, String unit, String statistic) {
-      if (rule.help != null) {
-          return rule.help;
+    /**
+     * Saves the dimension cache and the last successful scrape of each rule to the `snapshot_file`.
+     *
+     * Synchronized so that the save on shutdown can't be overwritten by an older periodic one.
+     */
+    synchronized void saveSnapshot() {
+      ActiveConfig config = activeConfig.get();
+      if (config.snapshotFile == null) {
+        return;
+      }
+      WarmStartSnapshot snapshot = new WarmStartSnapshot();
+      snapshot.dimensions.addAll(dimensionCache.entries());
+      for (MetricRule rule: config.rules) {
+        RuleScrape last = lastRuleScrapes.get(rule);
+        if (last == null) {
+          last = restoredRuleScrapes.get(rule);
+        }
+        if (last != null) {
+          snapshot.rules.add(new WarmStartSnapshot.RuleEntry(snapshotKey(rule), last.start, last.dimensions, last.datapoints));
+        }
+      }
+      try {
+        snapshot.write(new File(config.snapshotFile));
+      } catch (IOException e) {
+        LOGGER.log(Level.WARNING, "Saving snapshot to " + config.snapshotFile + " failed", e);
       }
-      return "CloudWatch metric " + rule.awsNamespace + " " + rule.awsMetricName
-          + " Dimensions: " + rule.awsDimensions + " Statistic: " + statistic
-          + " Unit: " + unit;
     }
 
-    private void scrape(List<MetricFamilySamples> mfs) throws CloneNotSupportedException {
-      ActiveConfig config = (ActiveConfig) activeConfig.clone();
+    /**
+     * Loads the `snapshot_file` saved by a previous run, so that scrapes are answered right away.
+     *
+     * Restored results that are still current are used as if just fetched. The others are served until a warm up
+     * scrape in the background has fetched fresh ones, or with background polling until the first poll of the rule.
+     */
+    private void restoreSnapshot(final ActiveConfig config) {
+      File file = new File(config.snapshotFile);
+      if (!file.exists()) {
+        return;
+      }
+      WarmStartSnapshot snapshot;
+      try {
+        snapshot = WarmStartSnapshot.read(file);
+      } catch (IOException e) {
+        LOGGER.log(Level.WARNING, "Restoring snapshot from " + file + " failed, starting cold", e);
+        return;
+      }
+
+      Map<Target, Target> targets = new HashMap<Target, Target>();
+      for (Target target: config.targets) {
+        targets.put(target, target);
+      }
+      for (WarmStartSnapshot.DimensionsEntry entry: snapshot.dimensions) {
+        Target target = targets.get(entry.key.target);
+        if (target != null) {
+          dimensionCache.restore(new DimensionCache.Key(target, entry.key.namespace, entry.key.metricName, entry.key.dimensions),
+              entry.dimensions, entry.fetchedAt);
+        }
+      }
 
-      long start = System.currentTimeMillis();
+      Map<String, WarmStartSnapshot.RuleEntry> entries = new HashMap<String, WarmStartSnapshot.RuleEntry>();
+      for (WarmStartSnapshot.RuleEntry entry: snapshot.rules) {
+        entries.put(entry.ruleKey, entry);
+      }
+      long now = System.currentTimeMillis();
       for (MetricRule rule: config.rules) {
-        Date startDate = new Date(start - 1000 * rule.delaySeconds);
-        Date endDate = new Date(start - 1000 * (rule.delaySeconds + rule.rangeSeconds));
-        GetMetricStatisticsRequest request = new GetMetricStatisticsRequest();
-        request.setNamespace(rule.awsNamespace);
-        request.setMetricName(rule.awsMetricName);
-        request.setStatistics(rule.awsStatistics);
-        request.setExtendedStatistics(rule.awsExtendedStatistics);
-        request.setEndTime(startDate);
-        request.setStartTime(endDate);
-        request.setPeriod(rule.periodSeconds);
-
-        String baseName = safeName(rule.awsNamespace.toLowerCase() + "_" + toSnakeCase(rule.awsMetricName));
-        String jobName = safeName(rule.awsNamespace.toLowerCase());
-        List<MetricFamilySamples.Sample> sumSamples = new ArrayList<MetricFamilySamples.Sample>();
-        List<MetricFamilySamples.Sample> sampleCountSamples = new ArrayList<MetricFamilySamples.Sample>();
-        List<MetricFamilySamples.Sample> minimumSamples = new ArrayList<MetricFamilySamples.Sample>();
-        List<MetricFamilySamples.Sample> maximumSamples = new ArrayList<MetricFamilySamples.Sample>();
-        List<MetricFamilySamples.Sample> averageSamples = new ArrayList<MetricFamilySamples.Sample>();
-        HashMap<String, ArrayList<MetricFamilySamples.Sample>> extendedSamples = new HashMap<String, ArrayList<MetricFamilySamples.Sample>>();
-
-        String unit = null;
-
-        if (rule.awsNamespace.equals("AWS/DynamoDB")
-                && rule.awsDimensions.contains("GlobalSecondaryIndexName")
-                && brokenDynamoMetrics.contains(rule.awsMetricName)) {
-            baseName += "_index";
-        }
-
-        for (List<Dimension> dimensions: getDimensions(rule, config.client)) {
-          request.setDimensions(dimensions);
-
-          GetMetricStatisticsResult result = config.client.getMetricStatistics(request);
-          cloudwatchRequests.inc();
-          Datapoint dp = getNewestDatapoint(result.getDatapoints());
-          if (dp == null) {
+        WarmStartSnapshot.RuleEntry entry = entries.get(snapshotKey(rule));
+        if (entry == null) {
+          continue;
+        }
+        RuleScrape ruleScrape = new RuleScrape(rule, entry.start);
+        ruleScrape.dimensions = entry.dimensions;
+        ruleScrape.datapoints = entry.datapoints;
+        if (!isRefreshDue(rule, entry.start, now)) {
+          lastRuleScrapes.put(rule, ruleScrape);
+        } else if (config.backgroundPolling) {
+          List<MetricFamilySamples> mfs = new ArrayList<MetricFamilySamples>();
+          try {
+            addSamples(Collections.singletonList(ruleScrape), new MetricFamilySamplesSink(mfs));
+          } catch (IOException e) {
+            // Not thrown when collecting into a list.
+            throw new IllegalStateException(e);
+          }
+          snapshots.putIfAbsent(rule, new RuleSnapshot(mfs, entry.start, false));
+        } else {
+          restoredRuleScrapes.put(rule, ruleScrape);
+        }
+      }
+      LOGGER.log(Level.INFO, "Restored " + snapshot.rules.size() + " metrics from snapshot " + file);
+
+      if (restoredRuleScrapes.isEmpty()) {
+        return;
+      }
+      config.users.incrementAndGet();
+      new DaemonThreadFactory().newThread(new Runnable() {
+        public void run() {
+          try {
+            scrape(config, config.rules, new MetricFamilySamplesSink(new ArrayList<MetricFamilySamples>()), true);
+          } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "CloudWatch warm up scrape failed", e);
+          } finally {
+            restoredRuleScrapes.clear();
+            releaseConfig(config);
+          }
+        }
+      }).start();
+    }
+
+    /**
+     * Updates the background polls to one per rule, each running every period_seconds.
+     * Polls of rules kept from the previous config carry on, those of removed rules are cancelled.
+     * No polls are scheduled if pollers is 0.
+     */
+    private void schedulePolls(ActiveConfig config, int pollers) {
+      List<MetricRule> rules = config.rules;
+      Set<MetricRule> keep = pollers == 0 ? Collections.<MetricRule>emptySet() : new HashSet<MetricRule>(rules);
+      Iterator<Map.Entry<MetricRule, ScheduledFuture<?>>> it = polls.entrySet().iterator();
+      while (it.hasNext()) {
+        Map.Entry<MetricRule, ScheduledFuture<?>> entry = it.next();
+        if (!keep.contains(entry.getKey())) {
+          entry.getValue().cancel(false);
+          it.remove();
+        }
+      }
+      Set<MetricRule> fetchedRules = new HashSet<MetricRule>(rules);
+      fetchedRules.addAll(config.fetchRules.values());
+      snapshots.keySet().retainAll(rules);
+      lastRuleScrapes.keySet().retainAll(fetchedRules);
+      restoredRuleScrapes.keySet().retainAll(rules);
+      lastDatapoints.keySet().retainAll(fetchedRules);
+      backfillDatapoints.keySet().retainAll(fetchedRules);
+      if (pollers == 0) {
+        return;
+      }
+
+      if (scheduler == null) {
+        scheduler = new ScheduledThreadPoolExecutor(pollers, new DaemonThreadFactory());
+      } else {
+        scheduler.setCorePoolSize(pollers);
+      }
+      for (final MetricRule rule: rules) {
+        if (polls.containsKey(rule)) {
+          continue;
+        }
+        polls.put(rule, scheduler.scheduleAtFixedRate(new Runnable() {
+          public void run() {
+            poll(rule);
+          }
+        }, 0, Math.max(rule.periodSeconds, 1), TimeUnit.SECONDS));
+      }
+    }
+
+    private void poll(MetricRule rule) {
+      List<MetricFamilySamples> mfs = new ArrayList<MetricFamilySamples>();
+      ActiveConfig config = acquireConfig();
+      RuleSnapshot snapshot = null;
+      try {
+        if (scrape(config, Collections.singletonList(rule), new MetricFamilySamplesSink(mfs), false) == 0) {
+          snapshot = new RuleSnapshot(mfs, System.currentTimeMillis(), false);
+        }
+      } catch (Exception e) {
+        LOGGER.log(Level.WARNING, "CloudWatch poll of " + rule.awsNamespace + " " + rule.awsMetricName + " failed", e);
+      } finally {
+        releaseConfig(config);
+      }
+      // Locked like schedulePolls, as a poll still running when its rule is removed must not store its results.
+      synchronized (this) {
+        if (!polls.containsKey(rule)) {
+          return;
+        }
+        if (snapshot == null) {
+          // Keep serving the previous results, but flag the failure.
+          RuleSnapshot previous = snapshots.get(rule);
+          if (previous != null) {
+            snapshot = new RuleSnapshot(previous.mfs, previous.timestamp, true);
+          } else {
+            snapshot = new RuleSnapshot(new ArrayList<MetricFamilySamples>(), 0, true);
+          }
+        }
+        snapshots.put(rule, snapshot);
+      }
+    }
+
+    /**
+     * Returns the worker pool used to fan out CloudWatch requests, resized to maxConcurrency.
+     * The pool is kept across reloads so that in-flight scrapes are never cut off.
+     */
+    private ThreadPoolExecutor getExecutor(int maxConcurrency) {
+      if (executor == null) {
+        executor = new ThreadPoolExecutor(maxConcurrency, maxConcurrency, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new DaemonThreadFactory());
+        executor.allowCoreThreadTimeOut(true);
+      } else if (maxConcurrency > executor.getMaximumPoolSize()) {
+        executor.setMaximumPoolSize(maxConcurrency);
+        executor.setCorePoolSize(maxConcurrency);
+      } else {
+        executor.setCorePoolSize(maxConcurrency);
+        executor.setMaximumPoolSize(maxConcurrency);
+      }
+      return executor;
+    }
+
+    static class DaemonThreadFactory implements ThreadFactory {
+      private final ThreadFactory delegate = Executors.defaultThreadFactory();
+      private final AtomicInteger count = new AtomicInteger();
+
+      public Thread newThread(Runnable r) {
+        Thread thread = delegate.newThread(r);
+        thread.setName("cloudwatch-exporter-" + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    }
+
+    private static Target newTarget(String region, String roleArn, String accountId, String endpointUrl, boolean labelled) {
+      if (accountId == null) {
+        // Role ARNs look like arn:aws:iam::123456789012:role/name
+        String[] arn = roleArn == null ? new String[0] : roleArn.split(":");
+        accountId = arn.length > 4 ? arn[4] : "";
+      }
+      return new Target(region, roleArn, accountId, endpointUrl, labelled);
+    }
+
+    private AmazonCloudWatchClient getClient(Target target, int maxConcurrency) {
+      AmazonCloudWatchClient client = clients.get(target);
+      if (client != null) {
+        return client;
+      }
+      ClientConfiguration clientConfiguration = new ClientConfiguration()
+          .withMaxConnections(Math.max(maxConcurrency, ClientConfiguration.DEFAULT_MAX_CONNECTIONS))
+          .withRetryPolicy(SDK_RETRY_POLICY);
+      if (target.roleArn != null) {
+        STSAssumeRoleSessionCredentialsProvider credentialsProvider = new STSAssumeRoleSessionCredentialsProvider(
+          target.roleArn,
+          "cloudwatch_exporter"
+        );
+        client = new AmazonCloudWatchClient(credentialsProvider, clientConfiguration);
+      } else {
+        client = new AmazonCloudWatchClient(clientConfiguration);
+      }
+      client.addRequestHandler(new ResponseBytesHandler());
+      try {
+        if (target.endpointUrl != null) {
+          client.setEndpoint(target.endpointUrl);
+        } else {
+          client.setEndpoint(getMonitoringEndpoint(RegionUtils.getRegion(target.region)));
+        }
+      } catch (RuntimeException e) {
+        client.shutdown();
+        throw e;
+      }
+      clients.put(target, client);
+      return client;
+    }
+
+    public String getMonitoringEndpoint(Region region) {
+      return "https://" + region.getServiceEndpoint("monitoring");
+    }
+
+    /**
+     * Makes a CloudWatch API request for the namespace, or "" if it covers several, subject to the rate limit of the API.
+     * Throttled requests are retried up to `max_throttle_retries` times, with jittered exponential backoff.
+     */
+    private <T> T callCloudWatch(ActiveConfig config, Target target, String api, String namespace, Callable<T> request) throws Exception {
+      RateLimiter rateLimiter = target.rateLimiters.get(api);
+      for (int attempt = 0; ; attempt++) {
+        if (rateLimiter != null) {
+          rateLimitWait.labels(api).inc(rateLimiter.acquire() / 1.0E9);
+        }
+        apiRequestsInFlight.labels(api).inc();
+        long requestStart = System.nanoTime();
+        try {
+          T result = request.call();
+          cloudwatchRequests.inc();
+          return result;
+        } catch (AmazonServiceException e) {
+          if (attempt >= config.maxThrottleRetries || !RetryUtils.isThrottlingException(e)) {
+            throw e;
+          }
+          throttleRetries.labels(api).inc();
+        } finally {
+          apiRequestDuration.labels(api, namespace).observe((System.nanoTime() - requestStart) / 1.0E9);
+          apiRequestsInFlight.labels(api).dec();
+        }
+        long backoff = Math.min(MAX_THROTTLE_BACKOFF_MILLIS, THROTTLE_BACKOFF_BASE_MILLIS << Math.min(attempt, 16));
+        Thread.sleep((long) (random.nextDouble() * backoff));
+      }
+    }
+
+    /**
+     * Counts the bytes of each API response, which the responses themselves don't tell.
+     */
+    static class ResponseBytesHandler extends RequestHandler2 {
+      @Override
+      public void afterResponse(Request<?> request, Response<?> response) {
+        String length = response.getHttpResponse().getHeaders().get("Content-Length");
+        if (length == null) {
+          return;
+        }
+        // E.g. ListMetricsRequest
+        String api = request.getOriginalRequest().getClass().getSimpleName().replaceFirst("Request$", "");
+        try {
+          apiResponseBytes.labels(api).inc(Long.parseLong(length));
+        } catch (NumberFormatException e) {
+          // Not worth failing the request for.
+        }
+      }
+    }
+
+    /**
+     * Returns the ListMetrics query that discovers the dimensions of a rule, or null if it has no dimensions.
+     * With list_metrics_per_namespace the metric name is left out, so that one query serves every rule
+     * of the namespace with the same dimensions.
+     */
+    private DimensionCache.Key getDimensionsKey(MetricRule rule, ActiveConfig config) {
+      if (rule.awsDimensions == null) {
+        return null;
+      }
+      return new DimensionCache.Key(rule.target, rule.awsNamespace,
+          config.listMetricsPerNamespace ? null : rule.awsMetricName, rule.awsDimensions);
+    }
+
+    /**
+     * Returns the dimension sets found by ListMetrics for the key, indexed by metric name.
+     */
+    private Map<String, List<List<Dimension>>> listDimensions(final DimensionCache.Key key, final ActiveConfig config) throws Exception {
+      final ListMetricsRequest request = new ListMetricsRequest();
+      request.setNamespace(key.namespace);
+      request.setMetricName(key.metricName);
+      List<DimensionFilter> dimensionFilters = new ArrayList<DimensionFilter>();
+      for (String dimension: key.dimensions) {
+        dimensionFilters.add(new DimensionFilter().withName(dimension));
+      }
+      request.setDimensions(dimensionFilters);
+
+      if (config.dimensionsCacheTtlSeconds > 0) {
+        return dimensionCache.get(key, 1000L * config.dimensionsCacheTtlSeconds,
+            new Callable<Map<String, List<List<Dimension>>>>() {
+              public Map<String, List<List<Dimension>>> call() throws Exception {
+                return listMetrics(config, key.target, request);
+              }
+            });
+      }
+      return listMetrics(config, key.target, request);
+    }
+
+    static List<List<Dimension>> getDimensions(MetricRule rule, Map<String, List<List<Dimension>>> listed) {
+      List<List<Dimension>> dimensions = new ArrayList<List<Dimension>>();
+      if (rule.awsDimensions == null) {
+        dimensions.add(new ArrayList<Dimension>());
+        return dimensions;
+      }
+
+      List<List<Dimension>> metricDimensionsList = listed.get(rule.awsMetricName);
+      if (metricDimensionsList == null) {
+        return dimensions;
+      }
+      for (List<Dimension> metricDimensions: metricDimensionsList) {
+        if (useMetric(rule, metricDimensions) && (!rule.shardByDimensions || inShard(rule, metricDimensions))) {
+          dimensions.add(metricDimensions);
+        }
+      }
+      return dimensions;
+    }
+
+    /**
+     * Returns the dimension sets of all metrics matching the request indexed by metric name, paginating through ListMetrics.
+     */
+    private Map<String, List<List<Dimension>>> listMetrics(final ActiveConfig config, final Target target, ListMetricsRequest request) throws Exception {
+      Map<String, List<List<Dimension>>> dimensions = new HashMap<String, List<List<Dimension>>>();
+      String nextToken = null;
+      do {
+        // Copy the request, as background cache refreshes may run concurrently.
+        final ListMetricsRequest pageRequest = request.clone().withNextToken(nextToken);
+        ListMetricsResult result = callCloudWatch(config, target, "ListMetrics", request.getNamespace(), new Callable<ListMetricsResult>() {
+          public ListMetricsResult call() {
+            return target.client.listMetrics(pageRequest);
+          }
+        });
+        for (Metric metric: result.getMetrics()) {
+          if (metric.getDimensions().size() != request.getDimensions().size()) {
+            // AWS returns all the metrics with dimensions beyond the ones we ask for,
+            // so filter them out.
             continue;
           }
-          unit = dp.getUnit();
+          // Not all responses set the metric name when it was requested.
+          String metricName = request.getMetricName() != null ? request.getMetricName() : metric.getMetricName();
+          List<List<Dimension>> metricDimensions = dimensions.get(metricName);
+          if (metricDimensions == null) {
+            metricDimensions = new ArrayList<List<Dimension>>();
+            dimensions.put(metricName, metricDimensions);
+          }
+          metricDimensions.add(metric.getDimensions());
+        }
+        nextToken = result.getNextToken();
+      } while (nextToken != null);
 
-          List<String> labelNames = new ArrayList<String>();
-          List<String> labelValues = new ArrayList<String>();
-          labelNames.add("job");
-          labelValues.add(jobName);
-          labelNames.add("instance");
-          labelValues.add("");
-          for (Dimension d: dimensions) {
-            labelNames.add(safeName(toSnakeCase(d.getName())));
-            labelValues.add(d.getValue());
+      return dimensions;
+    }
+
+    /**
+     * Check if a rule, or one of its dimension sets if dimensions is not null, belongs to the shard of this instance.
+     * Each target is sharded separately, while rules differing only in statistics land on the same shard.
+     */
+    static boolean inShard(MetricRule rule, List<Dimension> dimensions) {
+      if (rule.shardCount <= 1) {
+        return true;
+      }
+      StringBuilder key = new StringBuilder();
+      if (rule.target != null) {
+        key.append(rule.target.region).append('\0').append(rule.target.accountId).append('\0');
+      }
+      key.append(rule.awsNamespace).append('\0').append(rule.awsMetricName);
+      if (dimensions != null) {
+        for (Dimension dimension: dimensions) {
+          key.append('\0').append(dimension.getName()).append('=').append(dimension.getValue());
+        }
+      } else if (rule.awsDimensions != null) {
+        for (String dimension: rule.awsDimensions) {
+          key.append('\0').append(dimension);
+        }
+      }
+      return jumpConsistentHash(fnv1a64(key), rule.shardCount) == rule.shardIndex;
+    }
+
+    /**
+     * Jump consistent hash (Lamping and Veach), so that changing the number of shards
+     * moves as few rules and dimension sets as possible between instances.
+     */
+    static int jumpConsistentHash(long key, int buckets) {
+      long b = -1;
+      long j = 0;
+      while (j < buckets) {
+        b = j;
+        key = key * 2862933555777941757L + 1;
+        j = (long) ((b + 1) * ((double) (1L << 31) / (double) ((key >>> 33) + 1)));
+      }
+      return (int) b;
+    }
+
+    /**
+     * 64 bit FNV-1a hash, unlike String.hashCode this spreads similar keys over the whole range.
+     */
+    private static long fnv1a64(CharSequence s) {
+      long hash = 0xcbf29ce484222325L;
+      for (int i = 0; i < s.length(); i++) {
+        hash ^= s.charAt(i);
+        hash *= 0x100000001b3L;
+      }
+      return hash;
+    }
+
+    /**
+     * Check if a metric should be used according to `aws_dimension_select` or `aws_dimension_select_regex`
+     */
+    static boolean useMetric(MetricRule rule, List<Dimension> dimensions) {
+      if (rule.awsDimensionSelect == null && rule.awsDimensionSelectRegex == null) {
+        return true;
+      }
+      if (rule.awsDimensionSelect != null  && metricsIsInAwsDimensionSelect(rule, dimensions)) {
+        return true;
+      }
+      if (rule.awsDimensionSelectRegex != null  && metricIsInAwsDimensionSelectRegex(rule, dimensions)) {
+        return true;
+      }
+      return false;
+    }
+
+    /**
+     * Check if a metric is matched in `aws_dimension_select`
+     */
+    private static boolean metricsIsInAwsDimensionSelect(MetricRule rule, List<Dimension> dimensions) {
+      for (Dimension dimension : dimensions) {
+        Set<String> allowedDimensionValues = rule.awsDimensionSelect.get(dimension.getName());
+        if (allowedDimensionValues != null && !allowedDimensionValues.contains(dimension.getValue())) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * Check if a metric is matched in `aws_dimension_select_regex`
+     */
+    private static boolean metricIsInAwsDimensionSelectRegex(MetricRule rule, List<Dimension> dimensions) {
+      for (Dimension dimension : dimensions) {
+        List<Pattern> allowedDimensionValues = rule.awsDimensionSelectRegex.get(dimension.getName());
+        if (allowedDimensionValues != null && !regexListMatch(allowedDimensionValues, dimension.getValue())) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * Compiles a list of regexes, any of which has to match, into as few patterns as possible.
+     * Regexes are combined into a single alternation, except for those with backreferences
+     * as combining them would renumber their groups.
+     */
+    static List<Pattern> compileRegexList(List<String> regexList) {
+      List<Pattern> patterns = new ArrayList<Pattern>();
+      StringBuilder alternation = new StringBuilder();
+      for (String regex: regexList) {
+        Pattern pattern = Pattern.compile(regex);
+        if (BACKREFERENCE.matcher(regex).find()) {
+          patterns.add(pattern);
+          continue;
+        }
+        if (alternation.length() > 0) {
+          alternation.append('|');
+        }
+        alternation.append("(?:").append(regex).append(')');
+      }
+      if (alternation.length() > 0) {
+        patterns.add(0, Pattern.compile(alternation.toString()));
+      }
+      return patterns;
+    }
+
+    /**
+     * Check if any pattern in a list matches a given input value
+     */
+    protected static boolean regexListMatch(List<Pattern> patterns, String input) {
+      for (Pattern pattern: patterns) {
+        if (pattern.matcher(input).matches()) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    private Datapoint getNewestDatapoint(java.util.List<Datapoint> datapoints) {
+      Datapoint newest = null;
+      for (Datapoint d: datapoints) {
+        if (newest == null || newest.getTimestamp().before(d.getTimestamp())) {
+          newest = d;
+        }
+      }
+      return newest;
+    }
+
+    static String toSnakeCase(String str) {
+      return CAMEL_CASE.matcher(str).replaceAll("$1_$2").toLowerCase();
+    }
+
+    static String safeName(String s) {
+      // Change invalid chars to underscore, and merge underscores.
+      return REPEATED_UNDERSCORES.matcher(INVALID_NAME_CHARS.matcher(s).replaceAll("_")).replaceAll("_");
+    }
+
+    /**
+     * Memoized safeName(toSnakeCase(s)). Once the cache is full further names are computed every time.
+     */
+    static String snakeCaseName(String s) {
+      String name = nameCache.get(s);
+      if (name != null) {
+        nameCacheHits.inc();
+        return name;
+      }
+      nameCacheMisses.inc();
+      name = safeName(toSnakeCase(s));
+      if (nameCache.size() < NAME_CACHE_SIZE) {
+        nameCache.put(s, name);
+      }
+      return name;
+    }
+
+    /**
+     * Precomputes the metric name of each statistic and the labels of a rule.
+     */
+    static void computeNames(MetricRule rule) {
+      String namespace = rule.awsNamespace.toLowerCase();
+      rule.labelPrefixNames = new ArrayList<String>(Arrays.asList("job", "instance"));
+      rule.labelPrefixValues = new ArrayList<String>(Arrays.asList(safeName(namespace), ""));
+      if (rule.target != null && rule.target.labelled) {
+        rule.labelPrefixNames.addAll(Arrays.asList("region", "account_id"));
+        rule.labelPrefixValues.addAll(Arrays.asList(rule.target.region, rule.target.accountId));
+      }
+      rule.baseName = safeName(namespace + "_" + toSnakeCase(rule.awsMetricName));
+      if (rule.awsNamespace.equals("AWS/DynamoDB")
+              && rule.awsDimensions != null
+              && rule.awsDimensions.contains("GlobalSecondaryIndexName")
+              && brokenDynamoMetrics.contains(rule.awsMetricName)) {
+          rule.baseName += "_index";
+      }
+      rule.metricNames = new HashMap<String, String>();
+      for (String statistic: STATISTICS) {
+        rule.metricNames.put(statistic, rule.baseName + "_" + snakeCaseName(statistic));
+      }
+      if (rule.awsExtendedStatistics != null) {
+        for (String statistic: rule.awsExtendedStatistics) {
+          rule.metricNames.put(statistic, rule.baseName + "_" + snakeCaseName(statistic));
+        }
+      }
+      rule.labelNames = new HashMap<String, String>();
+      if (rule.awsDimensions != null) {
+        for (String dimension: rule.awsDimensions) {
+          rule.labelNames.put(dimension, snakeCaseName(dimension));
+        }
+      }
+    }
+
+    private static String metricName(MetricRule rule, String statistic) {
+      String name = rule.metricNames.get(statistic);
+      return name != null ? name : rule.baseName + "_" + snakeCaseName(statistic);
+    }
+
+    private String help(MetricRule rule, String unit, String statistic) {
+      if (rule.help != null) {
+          return rule.help;
+      }
+      String help = "CloudWatch metric " + rule.awsNamespace + " " + rule.awsMetricName
+          + " Dimensions: " + rule.awsDimensions + " Statistic: " + statistic;
+      if (unit != null) {
+        // GetMetricData does not return units.
+        help += " Unit: " + unit;
+      }
+      return help;
+    }
+
+    /**
+     * Builds the request for a dimension set. If a datapoint was previously fetched within the range,
+     * only it and newer ones are requested.
+     */
+    private GetMetricStatisticsRequest getMetricStatisticsRequest(MetricRule rule, List<Dimension> dimensions, long start, Datapoint previous) {
+      GetMetricStatisticsRequest request = new GetMetricStatisticsRequest();
+      request.setNamespace(rule.awsNamespace);
+      request.setMetricName(rule.awsMetricName);
+      request.setStatistics(rule.awsStatistics);
+      request.setExtendedStatistics(rule.awsExtendedStatistics);
+      request.setEndTime(new Date(start - 1000 * rule.delaySeconds));
+      request.setStartTime(new Date(start - 1000 * (rule.delaySeconds + rule.rangeSeconds)));
+      if (isInRange(previous, request.getStartTime(), request.getEndTime())) {
+        request.setStartTime(previous.getTimestamp());
+      }
+      request.setPeriod(rule.periodSeconds);
+      request.setDimensions(dimensions);
+      return request;
+    }
+
+    /**
+     * Runs the task on the worker pool, or inline if no pool is configured.
+     */
+    private <T> Future<T> submit(ActiveConfig config, Callable<T> task) {
+      if (config.executor == null) {
+        FutureTask<T> future = new FutureTask<T>(task);
+        future.run();
+        return future;
+      }
+      return config.executor.submit(task);
+    }
+
+    private static boolean isInRange(Datapoint datapoint, Date startTime, Date endTime) {
+      return datapoint != null && !datapoint.getTimestamp().before(startTime) && datapoint.getTimestamp().before(endTime);
+    }
+
+    private static <T> T await(Future<T> future) throws Exception {
+      try {
+        return future.get();
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof Exception) {
+          throw (Exception) e.getCause();
+        }
+        throw e;
+      }
+    }
+
+    /**
+     * Fetches the newest datapoint of every dimension set of a rule.
+     *
+     * Dimension sets are pulled off a shared index by at most `max_concurrency` tasks per rule,
+     * and results are stored by position so the output order does not depend on scheduling.
+     */
+    private List<Future<Void>> fetchDatapoints(final ActiveConfig config, final RuleScrape ruleScrape, final long start) {
+      final AtomicInteger next = new AtomicInteger();
+      final MetricRule rule = ruleScrape.rule;
+      final Map<List<Dimension>, Datapoint> last = rule.incrementalFetch ? getDimensionState(lastDatapoints, rule, ruleScrape.dimensions) : null;
+      final Map<List<Dimension>, List<Datapoint>> backfill = config.backfill ? getDimensionState(backfillDatapoints, rule, ruleScrape.dimensions) : null;
+      final Date rangeStart = new Date(start - 1000 * (rule.delaySeconds + rule.rangeSeconds));
+      int workers = ruleScrape.dimensions.size();
+      if (rule.maxConcurrency > 0 && rule.maxConcurrency < workers) {
+        workers = rule.maxConcurrency;
+      }
+      List<Future<Void>> futures = new ArrayList<Future<Void>>();
+      for (int i = 0; i < workers; i++) {
+        futures.add(submit(config, new Callable<Void>() {
+          public Void call() {
+            long taskStart = System.nanoTime();
+            try {
+              for (int j = next.getAndIncrement(); j < ruleScrape.datapoints.length && ruleScrape.error == null; j = next.getAndIncrement()) {
+                List<Dimension> dimensions = ruleScrape.dimensions.get(j);
+                Datapoint previous = last == null ? null : last.get(dimensions);
+                final GetMetricStatisticsRequest request = getMetricStatisticsRequest(rule, dimensions, start, previous);
+                GetMetricStatisticsResult result = callCloudWatch(config, rule.target, "GetMetricStatistics", rule.awsNamespace, new Callable<GetMetricStatisticsResult>() {
+                  public GetMetricStatisticsResult call() {
+                    return rule.target.client.getMetricStatistics(request);
+                  }
+                });
+                datapointsReceived.labels("GetMetricStatistics", rule.awsNamespace).inc(result.getDatapoints().size());
+                Datapoint datapoint = getNewestDatapoint(result.getDatapoints());
+                if (backfill != null) {
+                  backfill.put(dimensions, mergeDatapoints(backfill.get(dimensions), result.getDatapoints(), rangeStart, request.getStartTime()));
+                }
+                if (last != null) {
+                  if (datapoint != null) {
+                    last.put(dimensions, datapoint);
+                  } else if (isInRange(previous, rangeStart, request.getEndTime())) {
+                    // Nothing newer, but the full range would still have returned the previous datapoint.
+                    datapoint = previous;
+                  } else {
+                    last.remove(dimensions);
+                  }
+                }
+                ruleScrape.datapoints[j] = datapoint;
+              }
+            } catch (Exception e) {
+              ruleScrape.fail(e);
+            } finally {
+              long taskNanos = System.nanoTime() - taskStart;
+              ruleScrape.nanos.addAndGet(taskNanos);
+              phaseSeconds.labels("fetch").inc(taskNanos / 1.0E9);
+            }
+            return null;
           }
+        }));
+      }
+      return futures;
+    }
+
+    /**
+     * Returns the state kept for the dimension sets of a rule, forgetting that of dimension sets that no longer exist.
+     */
+    private static <T> Map<List<Dimension>, T> getDimensionState(
+        ConcurrentHashMap<MetricRule, ConcurrentHashMap<List<Dimension>, T>> state, MetricRule rule, List<List<Dimension>> dimensions) {
+      ConcurrentHashMap<List<Dimension>, T> ruleState = state.get(rule);
+      if (ruleState == null) {
+        state.putIfAbsent(rule, new ConcurrentHashMap<List<Dimension>, T>());
+        ruleState = state.get(rule);
+      }
+      ruleState.keySet().retainAll(new HashSet<List<Dimension>>(dimensions));
+      return ruleState;
+    }
 
-          if (dp.getSum() != null) {
-            sumSamples.add(new MetricFamilySamples.Sample(
-                baseName + "_sum", labelNames, labelValues, dp.getSum()));
+    /**
+     * Replaces the datapoints from the requested time onwards with those fetched, dropping those out of range.
+     */
+    private static List<Datapoint> mergeDatapoints(List<Datapoint> previous, List<Datapoint> fetched, Date rangeStart, Date requestStart) {
+      List<Datapoint> merged = new ArrayList<Datapoint>();
+      if (previous != null) {
+        for (Datapoint dp: previous) {
+          if (!dp.getTimestamp().before(rangeStart) && dp.getTimestamp().before(requestStart)) {
+            merged.add(dp);
           }
-          if (dp.getSampleCount() != null) {
-            sampleCountSamples.add(new MetricFamilySamples.Sample(
-                baseName + "_sample_count", labelNames, labelValues, dp.getSampleCount()));
+        }
+      }
+      merged.addAll(fetched);
+      Collections.sort(merged, new Comparator<Datapoint>() {
+        public int compare(Datapoint a, Datapoint b) {
+          return a.getTimestamp().compareTo(b.getTimestamp());
+        }
+      });
+      return merged;
+    }
+
+    /**
+     * Fetches the newest datapoint of every dimension set of the given rules using batched GetMetricData calls.
+     *
+     * All the queries for one dimension set are kept in the same batch, so each batch fills in its own datapoints.
+     * A failed batch fails every rule with queries in it.
+     */
+    private List<Future<Void>> fetchMetricData(final ActiveConfig config, List<RuleScrape> ruleScrapes, final long start) {
+      // GetMetricData takes one time window per call, so rules are batched by target and window.
+      Map<List<Object>, List<MetricDataBatch>> batchesByWindow = new LinkedHashMap<List<Object>, List<MetricDataBatch>>();
+      for (RuleScrape ruleScrape: ruleScrapes) {
+        MetricRule rule = ruleScrape.rule;
+        List<Object> window = Arrays.<Object>asList(rule.target, rule.delaySeconds, rule.rangeSeconds);
+        List<MetricDataBatch> batches = batchesByWindow.get(window);
+        if (batches == null) {
+          batches = new ArrayList<MetricDataBatch>();
+          batches.add(new MetricDataBatch(rule.target, rule.delaySeconds, rule.rangeSeconds));
+          batchesByWindow.put(window, batches);
+        }
+        List<String> statistics = new ArrayList<String>();
+        if (rule.awsStatistics != null) {
+          statistics.addAll(rule.awsStatistics);
+        }
+        int extendedStart = statistics.size();
+        if (rule.awsExtendedStatistics != null) {
+          statistics.addAll(rule.awsExtendedStatistics);
+        }
+
+        for (int j = 0; j < ruleScrape.dimensions.size(); j++) {
+          MetricDataBatch batch = batches.get(batches.size() - 1);
+          if (batch.queries.size() + statistics.size() > MAX_METRIC_DATA_QUERIES) {
+            batch = new MetricDataBatch(rule.target, rule.delaySeconds, rule.rangeSeconds);
+            batches.add(batch);
           }
-          if (dp.getMinimum() != null) {
-            minimumSamples.add(new MetricFamilySamples.Sample(
-                baseName + "_minimum", labelNames, labelValues, dp.getMinimum()));
+          Metric metric = new Metric()
+              .withNamespace(rule.awsNamespace)
+              .withMetricName(rule.awsMetricName)
+              .withDimensions(ruleScrape.dimensions.get(j));
+          for (int k = 0; k < statistics.size(); k++) {
+            batch.queries.add(new MetricDataQuery()
+                .withId("q" + batch.queries.size())
+                .withMetricStat(new MetricStat()
+                    .withMetric(metric)
+                    .withPeriod(rule.periodSeconds)
+                    .withStat(statistics.get(k)))
+                .withReturnData(true));
+            batch.targets.add(new MetricDataTarget(ruleScrape, j, statistics.get(k), k >= extendedStart));
           }
-          if (dp.getMaximum() != null) {
-            maximumSamples.add(new MetricFamilySamples.Sample(
-                baseName + "_maximum",labelNames, labelValues, dp.getMaximum()));
+          batch.ruleScrapes.add(ruleScrape);
+          if (batch.namespace == null) {
+            batch.namespace = rule.awsNamespace;
+          } else if (!batch.namespace.equals(rule.awsNamespace)) {
+            batch.namespace = "";
           }
-          if (dp.getAverage() != null) {
-            averageSamples.add(new MetricFamilySamples.Sample(
-                baseName + "_average", labelNames, labelValues, dp.getAverage()));
+        }
+      }
+
+      List<Future<Void>> futures = new ArrayList<Future<Void>>();
+      for (List<MetricDataBatch> batches: batchesByWindow.values()) {
+        for (final MetricDataBatch batch: batches) {
+          if (batch.queries.isEmpty()) {
+            continue;
           }
-          if (dp.getExtendedStatistics() != null) {
-            for (Map.Entry<String, Double> entry : dp.getExtendedStatistics().entrySet()) {
-              ArrayList<MetricFamilySamples.Sample> samples = extendedSamples.get(entry.getKey());
-              if (samples == null) {
-                samples = new ArrayList<MetricFamilySamples.Sample>();
-                extendedSamples.put(entry.getKey(), samples);
+          futures.add(submit(config, new Callable<Void>() {
+            public Void call() {
+              long taskStart = System.nanoTime();
+              try {
+                getMetricData(config, batch, start);
+              } catch (Exception e) {
+                for (RuleScrape ruleScrape: batch.ruleScrapes) {
+                  ruleScrape.fail(e);
+                }
+              } finally {
+                long taskNanos = System.nanoTime() - taskStart;
+                for (RuleScrape ruleScrape: batch.ruleScrapes) {
+                  ruleScrape.nanos.addAndGet(taskNanos);
+                }
+                phaseSeconds.labels("fetch").inc(taskNanos / 1.0E9);
               }
-              samples.add(new MetricFamilySamples.Sample(
-                  baseName + "_" + safeName(toSnakeCase(entry.getKey())), labelNames, labelValues, entry.getValue()));
+              return null;
             }
+          }));
+        }
+      }
+      return futures;
+    }
+
+    private void getMetricData(final ActiveConfig config, final MetricDataBatch batch, long start) throws Exception {
+      final GetMetricDataRequest request = new GetMetricDataRequest();
+      request.setMetricDataQueries(batch.queries);
+      request.setEndTime(new Date(start - 1000 * batch.delaySeconds));
+      request.setStartTime(new Date(start - 1000 * (batch.delaySeconds + batch.rangeSeconds)));
+
+      String nextToken = null;
+      do {
+        request.setNextToken(nextToken);
+        GetMetricDataResult result = callCloudWatch(config, batch.target, "GetMetricData", batch.namespace, new Callable<GetMetricDataResult>() {
+          public GetMetricDataResult call() {
+            return batch.target.client.getMetricData(request);
+          }
+        });
+        for (MetricDataResult metricDataResult: result.getMetricDataResults()) {
+          datapointsReceived.labels("GetMetricData", batch.namespace).inc(metricDataResult.getTimestamps().size());
+          MetricDataTarget target = batch.targets.get(Integer.parseInt(metricDataResult.getId().substring(1)));
+          addMetricDataResult(target, metricDataResult);
+        }
+        nextToken = result.getNextToken();
+      } while (nextToken != null);
+    }
+
+    /**
+     * Merges the newest value of a GetMetricData result into the datapoint for its dimension set,
+     * so that it can be exported the same way as a GetMetricStatistics datapoint.
+     */
+    private void addMetricDataResult(MetricDataTarget target, MetricDataResult result) {
+      Date timestamp = null;
+      Double value = null;
+      for (int i = 0; i < result.getTimestamps().size(); i++) {
+        if (timestamp == null || timestamp.before(result.getTimestamps().get(i))) {
+          timestamp = result.getTimestamps().get(i);
+          value = result.getValues().get(i);
+        }
+      }
+      // Values come newest first, so a later page may only have older ones for the query.
+      if (value == null || (target.timestamp != null && timestamp.before(target.timestamp))) {
+        return;
+      }
+      target.timestamp = timestamp;
+      Datapoint[] datapoints = target.ruleScrape.datapoints;
+      Datapoint dp = datapoints[target.index];
+      if (dp == null) {
+        dp = new Datapoint().withTimestamp(timestamp);
+        datapoints[target.index] = dp;
+      } else if (dp.getTimestamp().before(timestamp)) {
+        // A later page or statistic may have a newer datapoint.
+        dp.setTimestamp(timestamp);
+      }
+      if (target.extended) {
+        dp.addExtendedStatisticsEntry(target.statistic, value);
+      } else if (target.statistic.equals("Sum")) {
+        dp.setSum(value);
+      } else if (target.statistic.equals("SampleCount")) {
+        dp.setSampleCount(value);
+      } else if (target.statistic.equals("Minimum")) {
+        dp.setMinimum(value);
+      } else if (target.statistic.equals("Maximum")) {
+        dp.setMaximum(value);
+      } else if (target.statistic.equals("Average")) {
+        dp.setAverage(value);
+      }
+    }
+
+    /**
+     * Scrapes the given rules, returning how many of them failed.
+     * With refresh every rule is fetched, rather than reusing results that are still current or restored from a snapshot.
+     */
+    private int scrape(final ActiveConfig config, List<MetricRule> rules, SampleSink sink, boolean refresh) throws Exception {
+      final long start = System.currentTimeMillis();
+      List<RuleScrape> ruleScrapes = new ArrayList<RuleScrape>();
+      // The scrapes making requests, which for merged rules are those of their fetch rules.
+      List<RuleScrape> fetchScrapes = new ArrayList<RuleScrape>();
+      Map<MetricRule, RuleScrape> fetchScrapesByRule = new HashMap<MetricRule, RuleScrape>();
+      // Rules that need the same ListMetrics query share a single one.
+      Map<DimensionCache.Key, List<RuleScrape>> ruleScrapesByKey = new LinkedHashMap<DimensionCache.Key, List<RuleScrape>>();
+      for (MetricRule rule: rules) {
+        RuleScrape last = lastRuleScrapes.get(rule);
+        RuleScrape restored = restoredRuleScrapes.get(rule);
+        if (!refresh && last != null && !isRefreshDue(rule, last.start, start)) {
+          ruleScrapes.add(cachedRuleScrape(last));
+          continue;
+        }
+        if (!refresh && last == null && restored != null) {
+          ruleScrapes.add(cachedRuleScrape(restored));
+          continue;
+        }
+        RuleScrape ruleScrape = new RuleScrape(rule, start);
+        ruleScrapes.add(ruleScrape);
+        MetricRule fetchRule = config.fetchRules.get(rule);
+        if (fetchRule != null) {
+          ruleScrape.source = fetchScrapesByRule.get(fetchRule);
+          if (ruleScrape.source != null) {
+            continue;
+          }
+          ruleScrape.source = new RuleScrape(fetchRule, start);
+          fetchScrapesByRule.put(fetchRule, ruleScrape.source);
+          ruleScrape = ruleScrape.source;
+        }
+        fetchScrapes.add(ruleScrape);
+        DimensionCache.Key key = getDimensionsKey(ruleScrape.rule, config);
+        if (key == null) {
+          continue;
+        }
+        List<RuleScrape> keyRuleScrapes = ruleScrapesByKey.get(key);
+        if (keyRuleScrapes == null) {
+          keyRuleScrapes = new ArrayList<RuleScrape>();
+          ruleScrapesByKey.put(key, keyRuleScrapes);
+        }
+        keyRuleScrapes.add(ruleScrape);
+      }
+
+      // The task that ran a ListMetrics query goes on to start the GetMetricStatistics requests of its rules,
+      // so they don't wait for the ListMetrics queries of earlier rules and no thread is left waiting.
+      Map<DimensionCache.Key, Future<Map<String, List<List<Dimension>>>>> listFutures =
+          new HashMap<DimensionCache.Key, Future<Map<String, List<List<Dimension>>>>>();
+      final Map<DimensionCache.Key, AtomicLong> listNanos = new HashMap<DimensionCache.Key, AtomicLong>();
+      for (Map.Entry<DimensionCache.Key, List<RuleScrape>> entry: ruleScrapesByKey.entrySet()) {
+        final DimensionCache.Key key = entry.getKey();
+        final List<RuleScrape> keyRuleScrapes = entry.getValue();
+        final AtomicLong nanos = new AtomicLong();
+        listNanos.put(key, nanos);
+        listFutures.put(key, submit(config, new Callable<Map<String, List<List<Dimension>>>>() {
+          public Map<String, List<List<Dimension>>> call() throws Exception {
+            long taskStart = System.nanoTime();
+            Map<String, List<List<Dimension>>> listed;
+            try {
+              listed = listDimensions(key, config);
+            } finally {
+              nanos.set(System.nanoTime() - taskStart);
+              phaseSeconds.labels("discovery").inc(nanos.get() / 1.0E9);
+            }
+            for (RuleScrape ruleScrape: keyRuleScrapes) {
+              if (!ruleScrape.rule.useGetMetricData) {
+                startFetch(config, ruleScrape, listed, start);
+              }
+            }
+            return listed;
+          }
+        }));
+      }
+
+      List<RuleScrape> metricDataRuleScrapes = new ArrayList<RuleScrape>();
+      for (RuleScrape ruleScrape: fetchScrapes) {
+        MetricRule rule = ruleScrape.rule;
+        DimensionCache.Key key = getDimensionsKey(rule, config);
+        if (key == null) {
+          if (rule.useGetMetricData) {
+            setDimensions(ruleScrape, Collections.<String, List<List<Dimension>>>emptyMap());
+            metricDataRuleScrapes.add(ruleScrape);
+          } else {
+            startFetch(config, ruleScrape, Collections.<String, List<List<Dimension>>>emptyMap(), start);
+          }
+          continue;
+        }
+        try {
+          Map<String, List<List<Dimension>>> listed = await(listFutures.get(key));
+          if (rule.useGetMetricData) {
+            setDimensions(ruleScrape, listed);
+            metricDataRuleScrapes.add(ruleScrape);
+          }
+        } catch (Exception e) {
+          ruleScrape.fail(e);
+        } finally {
+          ruleScrape.nanos.addAndGet(listNanos.get(key).get());
+        }
+      }
+      // GetMetricData batches are shared, so those rules are done once all batches are.
+      List<Future<Void>> metricDataFutures = fetchMetricData(config, metricDataRuleScrapes, start);
+      for (RuleScrape ruleScrape: metricDataRuleScrapes) {
+        ruleScrape.futures = metricDataFutures;
+      }
+
+      // Rules exporting the same metric, such as the copies of a rule for each target, are output together
+      // so that each metric family appears once.
+      Map<String, List<RuleScrape>> ruleScrapesByName = new LinkedHashMap<String, List<RuleScrape>>();
+      for (RuleScrape ruleScrape: ruleScrapes) {
+        List<RuleScrape> group = ruleScrapesByName.get(ruleScrape.rule.baseName);
+        if (group == null) {
+          group = new ArrayList<RuleScrape>();
+          ruleScrapesByName.put(ruleScrape.rule.baseName, group);
+        }
+        group.add(ruleScrape);
+      }
+
+      // Pass on the samples of each metric as soon as its requests are done.
+      TimedSink timedSink = new TimedSink(sink);
+      int failed = 0;
+      int seriesLeft = config.maxTotalSeries > 0 ? config.maxTotalSeries : Integer.MAX_VALUE;
+      for (List<RuleScrape> group: ruleScrapesByName.values()) {
+        List<RuleScrape> succeeded = new ArrayList<RuleScrape>();
+        for (RuleScrape ruleScrape: group) {
+          MetricRule rule = ruleScrape.rule;
+          awaitFetch(ruleScrape);
+          if (ruleScrape.error == null) {
+            try {
+              seriesLeft -= limitSeries(ruleScrape, seriesLeft);
+            } catch (IllegalStateException e) {
+              ruleScrape.fail(e);
+            }
+          }
+          if (ruleScrape.error != null) {
+            failed++;
+            ruleErrors.labels(ruleLabels(rule)).inc();
+            LOGGER.log(Level.WARNING, "CloudWatch scrape of " + rule.awsNamespace + " " + rule.awsMetricName
+                + " in " + rule.target.region + " failed", ruleScrape.error);
+            continue;
+          }
+          succeeded.add(ruleScrape);
+        }
+        long assemblyStart = System.nanoTime();
+        long serializationStart = timedSink.nanos;
+        addSamples(succeeded, timedSink);
+        long groupNanos = System.nanoTime() - assemblyStart;
+        long serializationNanos = timedSink.nanos - serializationStart;
+        phaseSeconds.labels("assembly").inc((groupNanos - serializationNanos) / 1.0E9);
+        phaseSeconds.labels("serialization").inc(serializationNanos / 1.0E9);
+        long assemblyNanos = groupNanos / Math.max(1, succeeded.size());
+        for (RuleScrape ruleScrape: succeeded) {
+          if (ruleScrape.cached) {
+            continue;
+          }
+          lastRuleScrapes.put(ruleScrape.rule, ruleScrape);
+          if (ruleScrape.source != null) {
+            // For top_k to rank the dimension sets of the merged rule by.
+            lastRuleScrapes.put(ruleScrape.source.rule, ruleScrape.source);
+          }
+          ruleScrape.nanos.addAndGet(assemblyNanos);
+          ruleDuration.labels(ruleLabels(ruleScrape.rule)).set(ruleScrape.nanos.get() / 1.0E9);
+          ruleLastSuccess.labels(ruleLabels(ruleScrape.rule)).setToCurrentTime();
+        }
+      }
+
+      if (config.dimensionsCacheTtlSeconds > 0) {
+        dimensionCache.prune(Math.max(2000L * config.dimensionsCacheTtlSeconds, 3600 * 1000L));
+      } else {
+        dimensionCache.prune(0);
+      }
+      return failed;
+    }
+
+    /**
+     * Check if a rule has to be fetched again, which is once a new refresh_seconds interval of its time range has begun.
+     * Intervals are aligned like CloudWatch periods, so with the default of period_seconds this is when a new period
+     * may have closed. Until then CloudWatch would return the same newest datapoint.
+     */
+    static boolean isRefreshDue(MetricRule rule, long lastStart, long start) {
+      if (rule.refreshSeconds <= 0) {
+        return true;
+      }
+      long interval = 1000L * rule.refreshSeconds;
+      long delay = 1000L * rule.delaySeconds;
+      return (start - delay) / interval != (lastStart - delay) / interval;
+    }
+
+    /**
+     * Waits for the requests of a rule, taking the datapoints from the scrape of its fetch rule if it was merged.
+     */
+    private static void awaitFetch(RuleScrape ruleScrape) throws Exception {
+      RuleScrape source = ruleScrape.source != null ? ruleScrape.source : ruleScrape;
+      for (Future<Void> future: source.futures) {
+        await(future);
+      }
+      if (ruleScrape.source != null) {
+        ruleScrape.dimensions = source.dimensions;
+        ruleScrape.datapoints = source.datapoints;
+        ruleScrape.error = source.error;
+        ruleScrape.nanos.set(source.nanos.get());
+      }
+    }
+
+    private static RuleScrape cachedRuleScrape(RuleScrape last) {
+      RuleScrape ruleScrape = new RuleScrape(last.rule, last.start);
+      ruleScrape.cached = true;
+      ruleScrape.dimensions = last.dimensions;
+      ruleScrape.datapoints = last.datapoints;
+      return ruleScrape;
+    }
+
+    private void setDimensions(RuleScrape ruleScrape, Map<String, List<List<Dimension>>> listed) {
+      ruleScrape.dimensions = limitDimensions(ruleScrape.rule, getDimensions(ruleScrape.rule, listed));
+      ruleScrape.datapoints = new Datapoint[ruleScrape.dimensions.size()];
+    }
+
+    /**
+     * Applies max_dimension_sets to the dimension sets of a rule, before any of them are fetched.
+     * With top_k those with the highest values in the rule's last scrape are kept, followed by the first new ones.
+     */
+    private List<List<Dimension>> limitDimensions(MetricRule rule, List<List<Dimension>> dimensionsList) {
+      if (rule.maxDimensionSets <= 0 || dimensionsList.size() <= rule.maxDimensionSets) {
+        return dimensionsList;
+      }
+      if (rule.cardinalityPolicy.equals("fail")) {
+        throw new IllegalStateException(rule.awsNamespace + " " + rule.awsMetricName + " has " + dimensionsList.size()
+            + " dimension sets, more than max_dimension_sets of " + rule.maxDimensionSets);
+      }
+      droppedDimensionSets.labels(ruleLabels(rule)).inc(dimensionsList.size() - rule.maxDimensionSets);
+      if (rule.cardinalityPolicy.equals("truncate")) {
+        return new ArrayList<List<Dimension>>(dimensionsList.subList(0, rule.maxDimensionSets));
+      }
+
+      Map<List<Dimension>, Double> lastValues = new HashMap<List<Dimension>, Double>();
+      RuleScrape last = lastRuleScrapes.get(rule);
+      if (last != null) {
+        for (int i = 0; i < last.datapoints.length; i++) {
+          lastValues.put(last.dimensions.get(i), rankingValue(rule, last.datapoints[i]));
+        }
+      }
+      Double[] values = new Double[dimensionsList.size()];
+      for (int i = 0; i < values.length; i++) {
+        values[i] = lastValues.get(dimensionsList.get(i));
+      }
+      List<Integer> kept = new ArrayList<Integer>(rank(values).subList(0, rule.maxDimensionSets));
+      Collections.sort(kept);
+      List<List<Dimension>> limited = new ArrayList<List<Dimension>>(kept.size());
+      for (int i: kept) {
+        limited.add(dimensionsList.get(i));
+      }
+      return limited;
+    }
+
+    /**
+     * Applies max_series, and what is left of max_total_series, to a fetched rule, returning how many series it exports.
+     * Dimension sets are kept or dropped whole: with top_k those with the highest values, otherwise the first ones.
+     */
+    private int limitSeries(RuleScrape ruleScrape, int seriesLeft) {
+      MetricRule rule = ruleScrape.rule;
+      int max = rule.maxSeries > 0 ? Math.min(rule.maxSeries, seriesLeft) : seriesLeft;
+      if (max == Integer.MAX_VALUE) {
+        return 0;
+      }
+      int[] series = new int[ruleScrape.datapoints.length];
+      int total = 0;
+      for (int i = 0; i < series.length; i++) {
+        series[i] = seriesCount(rule, ruleScrape.datapoints[i]);
+        total += series[i];
+      }
+      if (total <= max) {
+        return total;
+      }
+      if (rule.cardinalityPolicy.equals("fail")) {
+        throw new IllegalStateException(rule.awsNamespace + " " + rule.awsMetricName + " has " + total
+            + " series, more than " + (max == rule.maxSeries ? "max_series of " : "is left of max_total_series, ") + max);
+      }
+
+      List<Integer> order = new ArrayList<Integer>();
+      if (rule.cardinalityPolicy.equals("top_k")) {
+        Double[] values = new Double[series.length];
+        for (int i = 0; i < values.length; i++) {
+          values[i] = rankingValue(rule, ruleScrape.datapoints[i]);
+        }
+        order = rank(values);
+      } else {
+        for (int i = 0; i < series.length; i++) {
+          order.add(i);
+        }
+      }
+      List<Integer> kept = new ArrayList<Integer>();
+      int keptSeries = 0;
+      for (int i: order) {
+        if (series[i] == 0) {
+          continue;
+        }
+        if (keptSeries + series[i] > max) {
+          break;
+        }
+        kept.add(i);
+        keptSeries += series[i];
+      }
+      Collections.sort(kept);
+      List<List<Dimension>> dimensions = new ArrayList<List<Dimension>>(kept.size());
+      Datapoint[] datapoints = new Datapoint[kept.size()];
+      for (int j = 0; j < datapoints.length; j++) {
+        dimensions.add(ruleScrape.dimensions.get(kept.get(j)));
+        datapoints[j] = ruleScrape.datapoints[kept.get(j)];
+      }
+      ruleScrape.dimensions = dimensions;
+      ruleScrape.datapoints = datapoints;
+      droppedSeries.labels(ruleLabels(rule)).inc(total - keptSeries);
+      return keptSeries;
+    }
+
+    /**
+     * The number of series a datapoint adds to the metrics of a rule, one per statistic of the rule that it has.
+     */
+    private static int seriesCount(MetricRule rule, Datapoint dp) {
+      if (dp == null) {
+        return 0;
+      }
+      int count = 0;
+      for (List<String> statistics: Arrays.asList(rule.awsStatistics, rule.awsExtendedStatistics)) {
+        if (statistics == null) {
+          continue;
+        }
+        for (String statistic: statistics) {
+          if (getStatistic(dp, statistic) != null) {
+            count++;
           }
         }
+      }
+      return count;
+    }
 
-        if (!sumSamples.isEmpty()) {
-          mfs.add(new MetricFamilySamples(baseName + "_sum", Type.GAUGE, help(rule, unit, "Sum"), sumSamples));
+    /**
+     * The value top_k ranks a dimension set by, that of the first statistic of the rule.
+     */
+    private static Double rankingValue(MetricRule rule, Datapoint dp) {
+      if (dp == null) {
+        return null;
+      }
+      for (List<String> statistics: Arrays.asList(rule.awsStatistics, rule.awsExtendedStatistics)) {
+        if (statistics != null && !statistics.isEmpty()) {
+          return getStatistic(dp, statistics.get(0));
         }
-        if (!sampleCountSamples.isEmpty()) {
-          mfs.add(new MetricFamilySamples(baseName + "_sample_count", Type.GAUGE, help(rule, unit, "SampleCount"), sampleCountSamples));
+      }
+      return null;
+    }
+
+    /**
+     * Returns the positions of the values from highest to lowest. Those without a value come last, in their original order.
+     */
+    static List<Integer> rank(final Double[] values) {
+      List<Integer> positions = new ArrayList<Integer>(values.length);
+      for (int i = 0; i < values.length; i++) {
+        positions.add(i);
+      }
+      Collections.sort(positions, new Comparator<Integer>() {
+        public int compare(Integer a, Integer b) {
+          if (values[a] == null || values[b] == null) {
+            return (values[a] == null ? 1 : 0) - (values[b] == null ? 1 : 0);
+          }
+          return Double.compare(values[b], values[a]);
         }
-        if (!minimumSamples.isEmpty()) {
-          mfs.add(new MetricFamilySamples(baseName + "_minimum", Type.GAUGE, help(rule, unit, "Minimum"), minimumSamples));
+      });
+      return positions;
+    }
+
+    /**
+     * Starts fetching the datapoints of a rule fetched with GetMetricStatistics, once its dimensions are known.
+     */
+    private void startFetch(ActiveConfig config, RuleScrape ruleScrape, Map<String, List<List<Dimension>>> listed, long start) {
+      try {
+        setDimensions(ruleScrape, listed);
+        ruleScrape.futures = fetchDatapoints(config, ruleScrape, start);
+      } catch (RuntimeException e) {
+        ruleScrape.fail(e);
+      }
+    }
+
+    /**
+     * Passes on the samples of rules exporting the same metric, one statistic at a time.
+     */
+    private void addSamples(List<RuleScrape> ruleScrapes, SampleSink sink) throws IOException {
+      String[] units = new String[ruleScrapes.size()];
+      List<List<List<String>>> labelNamesLists = new ArrayList<List<List<String>>>();
+      Set<String> statistics = new LinkedHashSet<String>(STATISTICS);
+      for (int k = 0; k < ruleScrapes.size(); k++) {
+        MetricRule rule = ruleScrapes.get(k).rule;
+        List<List<Dimension>> dimensionsList = ruleScrapes.get(k).dimensions;
+        Datapoint[] datapoints = ruleScrapes.get(k).datapoints;
+        List<List<String>> labelNamesList = new ArrayList<List<String>>(datapoints.length);
+        List<String> labelNames = null;
+        for (int i = 0; i < datapoints.length; i++) {
+          List<Dimension> dimensions = dimensionsList.get(i);
+          if (datapoints[i] == null) {
+            labelNamesList.add(null);
+            continue;
+          }
+          units[k] = datapoints[i].getUnit();
+
+          // Dimension sets nearly always come in the same order, so the label names are shared between samples.
+          if (!hasLabelNames(labelNames, rule, dimensions)) {
+            labelNames = labelNames(rule, dimensions);
+          }
+          labelNamesList.add(labelNames);
+        }
+        labelNamesLists.add(labelNamesList);
+        if (rule.awsExtendedStatistics != null) {
+          statistics.addAll(rule.awsExtendedStatistics);
         }
-        if (!maximumSamples.isEmpty()) {
-          mfs.add(new MetricFamilySamples(baseName + "_maximum", Type.GAUGE, help(rule, unit, "Maximum"), maximumSamples));
+      }
+
+      for (String statistic: statistics) {
+        for (int k = 0; k < ruleScrapes.size(); k++) {
+          RuleScrape ruleScrape = ruleScrapes.get(k);
+          addSamples(ruleScrape.rule, statistic, units[k], ruleScrape.dimensions, ruleScrape.datapoints, labelNamesLists.get(k), sink);
         }
-        if (!averageSamples.isEmpty()) {
-          mfs.add(new MetricFamilySamples(baseName + "_average", Type.GAUGE, help(rule, unit, "Average"), averageSamples));
+      }
+    }
+
+    private void addSamples(MetricRule rule, String statistic, String unit, List<List<Dimension>> dimensionsList,
+        Datapoint[] datapoints, List<List<String>> labelNamesList, SampleSink sink) throws IOException {
+      if (!hasStatistic(rule, statistic)) {
+        return;
+      }
+      String name = metricName(rule, statistic);
+      String help = help(rule, unit, statistic);
+      for (int i = 0; i < datapoints.length; i++) {
+        if (datapoints[i] == null) {
+          continue;
         }
-        for (Map.Entry<String, ArrayList<MetricFamilySamples.Sample>> entry : extendedSamples.entrySet()) {
-          mfs.add(new MetricFamilySamples(baseName + "_" + safeName(toSnakeCase(entry.getKey())), Type.GAUGE, help(rule, unit, entry.getKey()), entry.getValue()));
+        Double value = getStatistic(datapoints[i], statistic);
+        if (value != null) {
+          Long timestamp = rule.setTimestamp ? Long.valueOf(datapoints[i].getTimestamp().getTime()) : null;
+          sink.sample(name, help, labelNamesList.get(i), rule.labelPrefixValues, dimensionsList.get(i), value, timestamp);
         }
       }
     }
 
+    /**
+     * Check if a rule exports a statistic, as datapoints fetched for merged rules have the statistics of all of them.
+     */
+    private static boolean hasStatistic(MetricRule rule, String statistic) {
+      List<String> statistics = STATISTICS.contains(statistic) ? rule.awsStatistics : rule.awsExtendedStatistics;
+      return statistics != null && statistics.contains(statistic);
+    }
+
+    private static Double getStatistic(Datapoint dp, String statistic) {
+      if (statistic.equals("Sum")) {
+        return dp.getSum();
+      } else if (statistic.equals("SampleCount")) {
+        return dp.getSampleCount();
+      } else if (statistic.equals("Minimum")) {
+        return dp.getMinimum();
+      } else if (statistic.equals("Maximum")) {
+        return dp.getMaximum();
+      } else if (statistic.equals("Average")) {
+        return dp.getAverage();
+      }
+      return dp.getExtendedStatistics() == null ? null : dp.getExtendedStatistics().get(statistic);
+    }
+
+    private static List<String> labelNames(MetricRule rule, List<Dimension> dimensions) {
+      List<String> labelNames = new ArrayList<String>(rule.labelPrefixNames.size() + dimensions.size());
+      labelNames.addAll(rule.labelPrefixNames);
+      for (Dimension d: dimensions) {
+        labelNames.add(labelName(rule, d.getName()));
+      }
+      return labelNames;
+    }
+
+    /**
+     * The labels of the exporter's own metrics about a rule.
+     */
+    private static String[] ruleLabels(MetricRule rule) {
+      return new String[]{rule.target.region, rule.target.accountId, rule.awsNamespace, rule.awsMetricName};
+    }
+
+    private static String labelName(MetricRule rule, String dimension) {
+      String name = rule.labelNames.get(dimension);
+      return name != null ? name : snakeCaseName(dimension);
+    }
+
+    /**
+     * Check if label names built for an earlier dimension set also apply to this one.
+     */
+    private static boolean hasLabelNames(List<String> labelNames, MetricRule rule, List<Dimension> dimensions) {
+      int prefix = rule.labelPrefixNames.size();
+      if (labelNames == null || labelNames.size() != prefix + dimensions.size()) {
+        return false;
+      }
+      for (int i = 0; i < dimensions.size(); i++) {
+        if (!labelNames.get(prefix + i).equals(labelName(rule, dimensions.get(i).getName()))) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * Passes on every datapoint within range of the last scrape, oldest first, with timestamps.
+     * Only metrics fetched with GetMetricStatistics are included.
+     */
+    void backfill(OpenMetricsSink sink) throws IOException {
+      ActiveConfig config = activeConfig.get();
+      List<MetricRule> rules = config.rules;
+      // Rules exporting the same metric are grouped, as each metric family may only appear once.
+      Map<String, List<MetricRule>> rulesByName = new LinkedHashMap<String, List<MetricRule>>();
+      for (MetricRule rule: rules) {
+        List<MetricRule> group = rulesByName.get(rule.baseName);
+        if (group == null) {
+          group = new ArrayList<MetricRule>();
+          rulesByName.put(rule.baseName, group);
+        }
+        group.add(rule);
+      }
+
+      for (List<MetricRule> group: rulesByName.values()) {
+        Set<String> statistics = new LinkedHashSet<String>(STATISTICS);
+        for (MetricRule rule: group) {
+          if (rule.awsExtendedStatistics != null) {
+            statistics.addAll(rule.awsExtendedStatistics);
+          }
+        }
+        for (String statistic: statistics) {
+          for (MetricRule rule: group) {
+            MetricRule fetchRule = config.fetchRules.get(rule);
+            Map<List<Dimension>, List<Datapoint>> datapoints = backfillDatapoints.get(fetchRule != null ? fetchRule : rule);
+            if (datapoints == null || !hasStatistic(rule, statistic)) {
+              continue;
+            }
+            String name = metricName(rule, statistic);
+            for (Map.Entry<List<Dimension>, List<Datapoint>> entry: datapoints.entrySet()) {
+              List<String> labelNames = labelNames(rule, entry.getKey());
+              for (Datapoint dp: entry.getValue()) {
+                Double value = getStatistic(dp, statistic);
+                if (value != null) {
+                  sink.sample(name, help(rule, dp.getUnit(), statistic), labelNames, rule.labelPrefixValues, entry.getKey(), value, dp.getTimestamp().getTime());
+                }
+              }
+            }
+          }
+        }
+      }
+    }
+
+    /**
+     * Adds the latest background poll results of every rule, returning 1 if any of the last polls failed.
+     */
+    private double addSnapshots(ActiveConfig config, SampleSink sink) throws IOException {
+      double error = 0;
+      List<String> labelNames = Arrays.asList("region", "account_id", "namespace", "metric_name");
+      Map<List<String>, Double> timestamps = new LinkedHashMap<List<String>, Double>();
+      // Copies of a rule for different targets are snapshotted separately, but must be exposed as one family.
+      Map<String, MetricFamilySamples> families = new LinkedHashMap<String, MetricFamilySamples>();
+      for (MetricRule rule: config.rules) {
+        RuleSnapshot snapshot = snapshots.get(rule);
+        if (snapshot == null) {
+          continue;
+        }
+        for (MetricFamilySamples family: snapshot.mfs) {
+          MetricFamilySamples existing = families.get(family.name);
+          if (existing != null) {
+            List<MetricFamilySamples.Sample> samples = new ArrayList<MetricFamilySamples.Sample>(existing.samples);
+            samples.addAll(family.samples);
+            family = new MetricFamilySamples(existing.name, existing.type, existing.help, samples);
+          }
+          families.put(family.name, family);
+        }
+        if (snapshot.failed) {
+          error = 1;
+        }
+        // Rules for the same metric share a sample, which reports the stalest of them.
+        List<String> labelValues = Arrays.asList(ruleLabels(rule));
+        Double timestamp = timestamps.get(labelValues);
+        if (timestamp == null || timestamp > snapshot.timestamp / 1000.0) {
+          timestamps.put(labelValues, snapshot.timestamp / 1000.0);
+        }
+      }
+
+      for (MetricFamilySamples family: families.values()) {
+        sink.metricFamily(family);
+      }
+
+      List<MetricFamilySamples.Sample> samples = new ArrayList<MetricFamilySamples.Sample>();
+      for (Map.Entry<List<String>, Double> entry: timestamps.entrySet()) {
+        samples.add(new MetricFamilySamples.Sample(
+            "cloudwatch_exporter_snapshot_timestamp_seconds", labelNames, entry.getKey(), entry.getValue()));
+      }
+      sink.metricFamily(new MetricFamilySamples("cloudwatch_exporter_snapshot_timestamp_seconds", Type.GAUGE,
+          "When the exported values of a metric were last successfully polled from CloudWatch, in unixtime.", samples));
+      return error;
+    }
+
     public List<MetricFamilySamples> collect() {
+      List<MetricFamilySamples> mfs = new ArrayList<MetricFamilySamples>();
+      try {
+        collect(new MetricFamilySamplesSink(mfs));
+      } catch (IOException e) {
+        // Not thrown when collecting into a list.
+        throw new IllegalStateException(e);
+      }
+      return mfs;
+    }
+
+    /**
+     * Scrapes CloudWatch, passing on the samples of each rule as soon as they are available.
+     *
+     * Collects running at the same time share one scrape, as do those within `scrape_cache_seconds` of it
+     * finishing. A shared scrape is only reused while its config is active.
+     */
+    void collect(SampleSink sink) throws IOException {
+      ActiveConfig config = acquireConfig();
+      SharedScrape shared;
+      boolean running = false;
+      try {
+        synchronized (sharedScrapeLock) {
+          shared = sharedScrape;
+          if (shared == null || shared.config != config || shared.isOlderThan(1000L * config.scrapeCacheSeconds) || !shared.join()) {
+            shared = new SharedScrape(config, sink, config.scrapeCacheSeconds > 0);
+            sharedScrape = shared;
+            running = true;
+          }
+        }
+        if (running) {
+          boolean complete = false;
+          try {
+            collect(config, shared);
+            complete = true;
+          } finally {
+            if (config.scrapeCacheSeconds <= 0) {
+              synchronized (sharedScrapeLock) {
+                if (sharedScrape == shared) {
+                  sharedScrape = null;
+                }
+              }
+            }
+            shared.finish(complete);
+          }
+          return;
+        }
+      } finally {
+        releaseConfig(config);
+      }
+      if (shared.replay(sink)) {
+        coalescedScrapes.inc();
+        return;
+      }
+      // The shared scrape failed part way through, so scrape again.
+      config = acquireConfig();
+      try {
+        collect(config, sink);
+      } finally {
+        releaseConfig(config);
+      }
+    }
+
+    private void collect(ActiveConfig config, SampleSink sink) throws IOException {
       long start = System.nanoTime();
       double error = 0;
-      List<MetricFamilySamples> mfs = new ArrayList<MetricFamilySamples>();
       try {
-        scrape(mfs);
+        if (config.backgroundPolling) {
+          error = addSnapshots(config, sink);
+        } else {
+          if (scrape(config, config.rules, sink, false) > 0) {
+            error = 1;
+          }
+        }
+      } catch (IOException e) {
+        throw e;
       } catch (Exception e) {
         error = 1;
         LOGGER.log(Level.WARNING, "CloudWatch scrape failed", e);
@@ -448,13 +2639,13 @@ public class CloudWatchCollector extends Collector {
       List<MetricFamilySamples.Sample> samples = new ArrayList<MetricFamilySamples.Sample>();
       samples.add(new MetricFamilySamples.Sample(
           "cloudwatch_exporter_scrape_duration_seconds", new ArrayList<String>(), new ArrayList<String>(), (System.nanoTime() - start) / 1.0E9));
-      mfs.add(new MetricFamilySamples("cloudwatch_exporter_scrape_duration_seconds", Type.GAUGE, "Time this CloudWatch scrape took, in seconds.", samples));
+      sink.metricFamily(new MetricFamilySamples("cloudwatch_exporter_scrape_duration_seconds", Type.GAUGE, "Time this CloudWatch scrape took, in seconds.", samples));
 
       samples = new ArrayList<MetricFamilySamples.Sample>();
       samples.add(new MetricFamilySamples.Sample(
           "cloudwatch_exporter_scrape_error", new ArrayList<String>(), new ArrayList<String>(), error));
-      mfs.add(new MetricFamilySamples("cloudwatch_exporter_scrape_error", Type.GAUGE, "Non-zero if this scrape failed.", samples));
-      return mfs;
+      sink.metricFamily(new MetricFamilySamples("cloudwatch_exporter_scrape_error", Type.GAUGE, "Non-zero if this scrape failed.", samples));
+      sink.metricFamily(dimensionCache.ageMetricFamily());
     }
 
     /**
@@ -0,0 +1,164 @@
+package io.prometheus.cloudwatch;
+
+import com.amazonaws.services.cloudwatch.model.Dimension;
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.Collector.Type;
+import io.prometheus.client.Counter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Caches the dimension sets returned by ListMetrics, indexed by metric name.
+ *
+ * Once an entry is older than the TTL it keeps being served while it is refreshed in the background,
+ * so only the very first lookup of a key blocks on ListMetrics.
+ */
+class DimensionCache {
+    private static final Logger LOGGER = Logger.getLogger(CloudWatchCollector.class.getName());
+
+    private static final Counter cacheHits = Counter.build()
+      .name("cloudwatch_exporter_dimension_cache_hits_total").help("Dimension lookups served from the cache.").register();
+    private static final Counter cacheMisses = Counter.build()
+      .name("cloudwatch_exporter_dimension_cache_misses_total").help("Dimension lookups that had to wait for ListMetrics.").register();
+    private static final Counter refreshFailures = Counter.build()
+      .name("cloudwatch_exporter_dimension_cache_refresh_failures_total").help("Background dimension cache refreshes that failed.").register();
+
+    static class Key {
+      final CloudWatchCollector.Target target;
+      final String namespace;
+      final String metricName;
+      final List<String> dimensions;
+
+      Key(CloudWatchCollector.Target target, String namespace, String metricName, List<String> dimensions) {
+        this.target = target;
+        this.namespace = namespace;
+        this.metricName = metricName;
+        this.dimensions = dimensions;
+      }
+
+      @Override
+      public boolean equals(Object o) {
+        if (!(o instanceof Key)) {
+          return false;
+        }
+        Key other = (Key) o;
+        return target.equals(other.target)
+            && namespace.equals(other.namespace)
+            && (metricName == null ? other.metricName == null : metricName.equals(other.metricName))
+            && dimensions.equals(other.dimensions);
+      }
+
+      @Override
+      public int hashCode() {
+        return Arrays.hashCode(new Object[]{target, namespace, metricName, dimensions});
+      }
+    }
+
+    static class Entry {
+      volatile Map<String, List<List<Dimension>>> dimensions;
+      volatile long fetchedAt;
+      volatile long accessedAt;
+      final AtomicBoolean refreshing = new AtomicBoolean();
+    }
+
+    private final ConcurrentHashMap<Key, Entry> entries = new ConcurrentHashMap<Key, Entry>();
+    private final ExecutorService refresher = Executors.newSingleThreadExecutor(new CloudWatchCollector.DaemonThreadFactory());
+
+    /**
+     * Returns the cached dimensions for the key, loading them on a miss and refreshing them in the background once stale.
+     */
+    Map<String, List<List<Dimension>>> get(Key key, long ttlMillis, final Callable<Map<String, List<List<Dimension>>>> loader) throws Exception {
+      long now = System.currentTimeMillis();
+      final Entry entry = entries.get(key);
+      if (entry == null) {
+        cacheMisses.inc();
+        Entry loaded = new Entry();
+        loaded.dimensions = loader.call();
+        loaded.fetchedAt = now;
+        loaded.accessedAt = now;
+        entries.put(key, loaded);
+        return loaded.dimensions;
+      }
+
+      cacheHits.inc();
+      entry.accessedAt = now;
+      if (now - entry.fetchedAt >= ttlMillis && entry.refreshing.compareAndSet(false, true)) {
+        refresher.submit(new Runnable() {
+          public void run() {
+            try {
+              entry.dimensions = loader.call();
+              entry.fetchedAt = System.currentTimeMillis();
+            } catch (Exception e) {
+              refreshFailures.inc();
+              LOGGER.log(Level.WARNING, "Dimension cache refresh failed", e);
+            } finally {
+              entry.refreshing.set(false);
+            }
+          }
+        });
+      }
+      return entry.dimensions;
+    }
+
+    /**
+     * Returns the cached dimensions, for saving in a warm start snapshot.
+     */
+    List<WarmStartSnapshot.DimensionsEntry> entries() {
+      List<WarmStartSnapshot.DimensionsEntry> result = new ArrayList<WarmStartSnapshot.DimensionsEntry>();
+      for (Map.Entry<Key, Entry> entry: entries.entrySet()) {
+        result.add(new WarmStartSnapshot.DimensionsEntry(entry.getKey(), entry.getValue().dimensions, entry.getValue().fetchedAt));
+      }
+      return result;
+    }
+
+    /**
+     * Adds dimensions fetched earlier, such as by a previous run of the exporter, unless the key is already cached.
+     * Once they are older than the TTL they are served while being refreshed, like any other entry.
+     */
+    void restore(Key key, Map<String, List<List<Dimension>>> dimensions, long fetchedAt) {
+      Entry entry = new Entry();
+      entry.dimensions = dimensions;
+      entry.fetchedAt = fetchedAt;
+      entry.accessedAt = System.currentTimeMillis();
+      entries.putIfAbsent(key, entry);
+    }
+
+    /**
+     * Drops entries that have not been looked up for the given time, such as those of removed rules.
+     */
+    void prune(long unusedMillis) {
+      long now = System.currentTimeMillis();
+      Iterator<Entry> it = entries.values().iterator();
+      while (it.hasNext()) {
+        if (now - it.next().accessedAt > unusedMillis) {
+          it.remove();
+        }
+      }
+    }
+
+    MetricFamilySamples ageMetricFamily() {
+      long now = System.currentTimeMillis();
+      List<String> labelNames = Arrays.asList("region", "account_id", "namespace", "metric_name", "dimensions");
+      List<MetricFamilySamples.Sample> samples = new ArrayList<MetricFamilySamples.Sample>();
+      for (Map.Entry<Key, Entry> entry : entries.entrySet()) {
+        Key key = entry.getKey();
+        samples.add(new MetricFamilySamples.Sample(
+            "cloudwatch_exporter_dimension_cache_age_seconds", labelNames,
+            Arrays.asList(key.target.region, key.target.accountId, key.namespace, key.metricName == null ? "" : key.metricName, key.dimensions.toString()),
+            (now - entry.getValue().fetchedAt) / 1000.0));
+      }
+      return new MetricFamilySamples("cloudwatch_exporter_dimension_cache_age_seconds", Type.GAUGE,
+          "Time since the cached dimensions were last fetched from ListMetrics, in seconds.", samples);
+    }
+}
@@ -0,0 +1,66 @@
+package io.prometheus.cloudwatch;
+
+import com.amazonaws.services.cloudwatch.model.Dimension;
+import io.prometheus.client.Collector;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+
+/**
+ * Writes samples in the OpenMetrics text format, which unlike the Prometheus one allows several timestamped
+ * samples per series and so can be used for backfilling. The caller writes the terminating `# EOF` line.
+ *
+ * Only gauge samples can be written, so it is not a SampleSink.
+ */
+class OpenMetricsSink {
+    static final String CONTENT_TYPE = "application/openmetrics-text; version=1.0.0; charset=utf-8";
+
+    private final Writer writer;
+    private String name;
+
+    OpenMetricsSink(Writer writer) {
+      this.writer = writer;
+    }
+
+    void sample(String name, String help, List<String> labelNames, List<String> labelPrefix, List<Dimension> dimensions, double value, long timestampMs) throws IOException {
+      if (!name.equals(this.name)) {
+        this.name = name;
+        writer.write("# HELP ");
+        writer.write(name);
+        writer.write(' ');
+        TextFormatSink.writeEscaped(writer, help, true);
+        writer.write('\n');
+        writer.write("# TYPE ");
+        writer.write(name);
+        writer.write(" gauge\n");
+      }
+      writer.write(name);
+      writer.write('{');
+      for (int i = 0; i < labelPrefix.size(); i++) {
+        writeLabel(labelNames.get(i), labelPrefix.get(i), i == 0);
+      }
+      for (int i = 0; i < dimensions.size(); i++) {
+        writeLabel(labelNames.get(labelPrefix.size() + i), dimensions.get(i).getValue(), false);
+      }
+      writer.write("} ");
+      writer.write(Collector.doubleToGoString(value));
+      // OpenMetrics timestamps are in seconds.
+      writer.write(' ');
+      writer.write(Long.toString(timestampMs / 1000));
+      writer.write('.');
+      writer.write(String.format("%03d", timestampMs % 1000));
+      writer.write('\n');
+    }
+
+    private void writeLabel(String labelName, String labelValue, boolean first) throws IOException {
+      // OpenMetrics does not allow the trailing comma of the Prometheus format.
+      if (!first) {
+        writer.write(',');
+      }
+      writer.write(labelName);
+      writer.write("=\"");
+      TextFormatSink.writeEscaped(writer, labelValue, true);
+      writer.write('"');
+    }
+}
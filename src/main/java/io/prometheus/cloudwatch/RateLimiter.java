@@ -0,0 +1,49 @@
+package io.prometheus.cloudwatch;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket allowing a steady number of requests per second, with bursts of up to one second's worth.
+ *
+ * Callers that find the bucket empty take a token on credit and sleep until it would have been refilled,
+ * so waiting callers are served in the order they arrived.
+ */
+class RateLimiter {
+    private final double permitsPerSecond;
+    private double tokens;
+    private long lastRefill;
+
+    RateLimiter(double permitsPerSecond) {
+      if (permitsPerSecond <= 0) {
+        throw new IllegalArgumentException("Rate limit must be positive");
+      }
+      this.permitsPerSecond = permitsPerSecond;
+      this.tokens = permitsPerSecond;
+      this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Takes a token, returning how long to wait before using it in nanoseconds.
+     */
+    synchronized long reserve() {
+      long now = System.nanoTime();
+      tokens = Math.min(permitsPerSecond, tokens + (now - lastRefill) * permitsPerSecond / 1.0E9);
+      lastRefill = now;
+      tokens -= 1;
+      if (tokens >= 0) {
+        return 0;
+      }
+      return (long) (-tokens / permitsPerSecond * 1.0E9);
+    }
+
+    /**
+     * Blocks until a token is available, returning how long was waited in nanoseconds.
+     */
+    long acquire() throws InterruptedException {
+      long wait = reserve();
+      if (wait > 0) {
+        TimeUnit.NANOSECONDS.sleep(wait);
+      }
+      return wait;
+    }
+}
@@ -0,0 +1,164 @@
+package io.prometheus.cloudwatch;
+
+import com.amazonaws.services.cloudwatch.model.Dimension;
+import io.prometheus.client.Collector.MetricFamilySamples;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * A scrape shared by concurrent collects, and by later ones while it is cached.
+ *
+ * The collect running the scrape passes its samples on as usual. Samples are only recorded for others to replay
+ * once it is done if the scrape is to be cached, or once another collect has joined, so a scrape nobody joins
+ * keeps nothing. Should the collect's own sink fail, e.g. because its client went away,
+ * the scrape carries on for the others and the error is rethrown at the end.
+ */
+class SharedScrape implements CloudWatchCollector.SampleSink {
+    /**
+     * A recorded sample, or a metric family if mfs is set.
+     */
+    private static class Event {
+      final MetricFamilySamples mfs;
+      final String name;
+      final String help;
+      final List<String> labelNames;
+      final List<String> labelPrefix;
+      final List<Dimension> dimensions;
+      final double value;
+      final Long timestampMs;
+
+      Event(MetricFamilySamples mfs, String name, String help, List<String> labelNames, List<String> labelPrefix,
+          List<Dimension> dimensions, double value, Long timestampMs) {
+        this.mfs = mfs;
+        this.name = name;
+        this.help = help;
+        this.labelNames = labelNames;
+        this.labelPrefix = labelPrefix;
+        this.dimensions = dimensions;
+        this.value = value;
+        this.timestampMs = timestampMs;
+      }
+    }
+
+    final CloudWatchCollector.ActiveConfig config;
+    private final List<Event> events = new ArrayList<Event>();
+    private final CountDownLatch done = new CountDownLatch(1);
+    private CloudWatchCollector.SampleSink sink;
+    private IOException sinkError;
+    // Guarded by this. Once samples have been passed on without being recorded, the scrape can't be joined.
+    private boolean recording;
+    private boolean streamed;
+    private volatile boolean complete;
+    private volatile long finishedAt;
+
+    SharedScrape(CloudWatchCollector.ActiveConfig config, CloudWatchCollector.SampleSink sink, boolean recording) {
+      this.config = config;
+      this.sink = sink;
+      this.recording = recording;
+    }
+
+    /**
+     * Joins the scrape, so its samples are recorded for replay. Returns false if samples were already passed on without
+     * being recorded, in which case the scrape can't be replayed in full.
+     */
+    synchronized boolean join() {
+      if (streamed && !recording) {
+        return false;
+      }
+      recording = true;
+      return true;
+    }
+
+    private synchronized void record(Event event) {
+      if (recording) {
+        events.add(event);
+      } else {
+        streamed = true;
+      }
+    }
+
+    /**
+     * The number of samples and families recorded so far.
+     */
+    synchronized int recorded() {
+      return events.size();
+    }
+
+    public void sample(String name, String help, List<String> labelNames, List<String> labelPrefix, List<Dimension> dimensions, double value, Long timestampMs) {
+      record(new Event(null, name, help, labelNames, labelPrefix, dimensions, value, timestampMs));
+      if (sink != null) {
+        try {
+          sink.sample(name, help, labelNames, labelPrefix, dimensions, value, timestampMs);
+        } catch (IOException e) {
+          sinkFailed(e);
+        }
+      }
+    }
+
+    public void metricFamily(MetricFamilySamples mfs) {
+      record(new Event(mfs, null, null, null, null, null, 0, null));
+      if (sink != null) {
+        try {
+          sink.metricFamily(mfs);
+        } catch (IOException e) {
+          sinkFailed(e);
+        }
+      }
+    }
+
+    private void sinkFailed(IOException e) {
+      sinkError = e;
+      sink = null;
+    }
+
+    /**
+     * Marks the scrape as done, complete if every sample was recorded. Then rethrows any error of the running collect's sink.
+     */
+    void finish(boolean complete) throws IOException {
+      this.complete = complete;
+      finishedAt = System.currentTimeMillis();
+      done.countDown();
+      if (sinkError != null) {
+        throw sinkError;
+      }
+    }
+
+    /**
+     * Check if the scrape is done and finished at least maxAgeMillis ago.
+     */
+    boolean isOlderThan(long maxAgeMillis) {
+      return done.getCount() == 0 && System.currentTimeMillis() - finishedAt > maxAgeMillis;
+    }
+
+    /**
+     * Waits for the scrape to finish and passes its samples on, returning false if it did not complete.
+     */
+    boolean replay(CloudWatchCollector.SampleSink sink) throws IOException {
+      boolean interrupted = false;
+      while (true) {
+        try {
+          done.await();
+          break;
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+      if (!complete) {
+        return false;
+      }
+      for (Event event: events) {
+        if (event.mfs != null) {
+          sink.metricFamily(event.mfs);
+        } else {
+          sink.sample(event.name, event.help, event.labelNames, event.labelPrefix, event.dimensions, event.value, event.timestampMs);
+        }
+      }
+      return true;
+    }
+}
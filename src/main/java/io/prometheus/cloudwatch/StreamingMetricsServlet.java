@@ -0,0 +1,80 @@
+package io.prometheus.cloudwatch;
+
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.exporter.common.TextFormat;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Serves the metrics of a registry followed by those of the collector, which are written out
+ * rule by rule as the CloudWatch requests complete rather than built up in memory first.
+ * The collector should not also be registered with the registry.
+ */
+public class StreamingMetricsServlet extends HttpServlet {
+    private static final int GZIP_BUFFER_SIZE = 64 * 1024;
+
+    private final CloudWatchCollector collector;
+    private final CollectorRegistry registry;
+
+    public StreamingMetricsServlet(CloudWatchCollector collector, CollectorRegistry registry) {
+        this.collector = collector;
+        this.registry = registry;
+    }
+
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        resp.setStatus(HttpServletResponse.SC_OK);
+        resp.setContentType(TextFormat.CONTENT_TYPE_004);
+
+        Writer writer = new BufferedWriter(new OutputStreamWriter(getOutputStream(req, resp), "UTF-8"));
+        try {
+            TextFormat.write004(writer, registry.metricFamilySamples());
+            collector.collect(new TextFormatSink(writer));
+            writer.flush();
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Returns the stream to write the response body to, gzipped if the client accepts it.
+     * The exposition formats are very repetitive, so this shrinks large responses many times over.
+     */
+    static OutputStream getOutputStream(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        resp.addHeader("Vary", "Accept-Encoding");
+        if (!acceptsGzip(req.getHeader("Accept-Encoding"))) {
+            return resp.getOutputStream();
+        }
+        resp.setHeader("Content-Encoding", "gzip");
+        return new GZIPOutputStream(resp.getOutputStream(), GZIP_BUFFER_SIZE);
+    }
+
+    static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String coding: acceptEncoding.split(",")) {
+            String[] params = coding.split(";");
+            if (!params[0].trim().equalsIgnoreCase("gzip")) {
+                continue;
+            }
+            for (int i = 1; i < params.length; i++) {
+                // Refused with q=0.
+                String param = params[i].replace(" ", "");
+                if (param.startsWith("q=") && param.substring(2).matches("0(\\.0*)?")) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+}
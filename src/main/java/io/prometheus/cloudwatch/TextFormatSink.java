@@ -0,0 +1,86 @@
+package io.prometheus.cloudwatch;
+
+import com.amazonaws.services.cloudwatch.model.Dimension;
+import io.prometheus.client.Collector;
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.exporter.common.TextFormat;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Writes samples straight out in the Prometheus text format, producing the same output as TextFormat.write004.
+ */
+class TextFormatSink implements CloudWatchCollector.SampleSink {
+    private final Writer writer;
+    private String name;
+
+    TextFormatSink(Writer writer) {
+      this.writer = writer;
+    }
+
+    public void sample(String name, String help, List<String> labelNames, List<String> labelPrefix, List<Dimension> dimensions, double value, Long timestampMs) throws IOException {
+      if (!name.equals(this.name)) {
+        this.name = name;
+        writer.write("# HELP ");
+        writer.write(name);
+        writer.write(' ');
+        writeEscaped(writer, help, false);
+        writer.write('\n');
+        writer.write("# TYPE ");
+        writer.write(name);
+        writer.write(" gauge\n");
+      }
+      writer.write(name);
+      writer.write('{');
+      for (int i = 0; i < labelPrefix.size(); i++) {
+        writeLabel(labelNames.get(i), labelPrefix.get(i));
+      }
+      for (int i = 0; i < dimensions.size(); i++) {
+        writeLabel(labelNames.get(labelPrefix.size() + i), dimensions.get(i).getValue());
+      }
+      writer.write("} ");
+      writer.write(Collector.doubleToGoString(value));
+      if (timestampMs != null) {
+        writer.write(' ');
+        writer.write(Long.toString(timestampMs));
+      }
+      writer.write('\n');
+    }
+
+    public void metricFamily(MetricFamilySamples mfs) throws IOException {
+      name = null;
+      TextFormat.write004(writer, Collections.enumeration(Collections.singletonList(mfs)));
+    }
+
+    private void writeLabel(String labelName, String labelValue) throws IOException {
+      writer.write(labelName);
+      writer.write("=\"");
+      writeEscaped(writer, labelValue, true);
+      writer.write("\",");
+    }
+
+    /**
+     * Escapes backslashes and newlines, and double quotes if asked to, as in label values.
+     */
+    static void writeEscaped(Writer writer, String s, boolean escapeQuotes) throws IOException {
+      for (int i = 0; i < s.length(); i++) {
+        char c = s.charAt(i);
+        switch (c) {
+          case '\\':
+            writer.write("\\\\");
+            break;
+          case '\"':
+            writer.write(escapeQuotes ? "\\\"" : "\"");
+            break;
+          case '\n':
+            writer.write("\\n");
+            break;
+          default:
+            writer.write(c);
+        }
+      }
+    }
+}
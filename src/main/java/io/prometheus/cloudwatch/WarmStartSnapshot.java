@@ -0,0 +1,257 @@
+package io.prometheus.cloudwatch;
+
+import com.amazonaws.services.cloudwatch.model.Datapoint;
+import com.amazonaws.services.cloudwatch.model.Dimension;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The discovered dimensions and last fetched datapoints of every rule, saved to a local file
+ * so that a restarted exporter can serve them while it fetches fresh ones.
+ *
+ * The file is a compact binary format. It is written and synced to a temporary file which is then renamed over the
+ * previous one, so a crash while saving never leaves a partial snapshot behind.
+ */
+class WarmStartSnapshot {
+    private static final int MAGIC = 0x43575331;  // CWS1
+
+    /**
+     * A DimensionCache entry.
+     */
+    static class DimensionsEntry {
+      final DimensionCache.Key key;
+      final Map<String, List<List<Dimension>>> dimensions;
+      final long fetchedAt;
+
+      DimensionsEntry(DimensionCache.Key key, Map<String, List<List<Dimension>>> dimensions, long fetchedAt) {
+        this.key = key;
+        this.dimensions = dimensions;
+        this.fetchedAt = fetchedAt;
+      }
+    }
+
+    /**
+     * The last successful scrape of a rule, identified by its settings.
+     */
+    static class RuleEntry {
+      final String ruleKey;
+      final long start;
+      final List<List<Dimension>> dimensions;
+      final Datapoint[] datapoints;
+
+      RuleEntry(String ruleKey, long start, List<List<Dimension>> dimensions, Datapoint[] datapoints) {
+        this.ruleKey = ruleKey;
+        this.start = start;
+        this.dimensions = dimensions;
+        this.datapoints = datapoints;
+      }
+    }
+
+    final List<DimensionsEntry> dimensions = new ArrayList<DimensionsEntry>();
+    final List<RuleEntry> rules = new ArrayList<RuleEntry>();
+
+    void write(File file) throws IOException {
+      // A temporary file of its own, as the periodic save and the one on shutdown can run at the same time.
+      File tmp = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+      FileOutputStream fileOut = new FileOutputStream(tmp);
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+      boolean written = false;
+      try {
+        out.writeInt(MAGIC);
+        out.writeInt(dimensions.size());
+        for (DimensionsEntry entry: dimensions) {
+          writeString(out, entry.key.target.region);
+          writeNullableString(out, entry.key.target.roleArn);
+          writeString(out, entry.key.target.accountId);
+          writeNullableString(out, entry.key.target.endpointUrl);
+          out.writeBoolean(entry.key.target.labelled);
+          writeString(out, entry.key.namespace);
+          writeNullableString(out, entry.key.metricName);
+          out.writeInt(entry.key.dimensions.size());
+          for (String dimension: entry.key.dimensions) {
+            writeString(out, dimension);
+          }
+          out.writeLong(entry.fetchedAt);
+          out.writeInt(entry.dimensions.size());
+          for (Map.Entry<String, List<List<Dimension>>> metric: entry.dimensions.entrySet()) {
+            writeString(out, metric.getKey());
+            writeDimensionsList(out, metric.getValue());
+          }
+        }
+        out.writeInt(rules.size());
+        for (RuleEntry entry: rules) {
+          writeString(out, entry.ruleKey);
+          out.writeLong(entry.start);
+          writeDimensionsList(out, entry.dimensions);
+          for (Datapoint dp: entry.datapoints) {
+            writeDatapoint(out, dp);
+          }
+        }
+        // On disk before the rename, so that a crash can't leave the renamed file empty.
+        out.flush();
+        fileOut.getFD().sync();
+        written = true;
+      } finally {
+        out.close();
+        if (!written) {
+          tmp.delete();
+        }
+      }
+      if (!tmp.renameTo(file)) {
+        tmp.delete();
+        throw new IOException("Could not rename " + tmp + " to " + file);
+      }
+    }
+
+    static WarmStartSnapshot read(File file) throws IOException {
+      WarmStartSnapshot snapshot = new WarmStartSnapshot();
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      try {
+        if (in.readInt() != MAGIC) {
+          throw new IOException(file + " is not a snapshot");
+        }
+        for (int i = in.readInt(); i > 0; i--) {
+          CloudWatchCollector.Target target = new CloudWatchCollector.Target(
+              readString(in), readNullableString(in), readString(in), readNullableString(in), in.readBoolean());
+          String namespace = readString(in);
+          String metricName = readNullableString(in);
+          List<String> keyDimensions = new ArrayList<String>();
+          for (int j = in.readInt(); j > 0; j--) {
+            keyDimensions.add(readString(in));
+          }
+          long fetchedAt = in.readLong();
+          Map<String, List<List<Dimension>>> dimensions = new HashMap<String, List<List<Dimension>>>();
+          for (int j = in.readInt(); j > 0; j--) {
+            dimensions.put(readString(in), readDimensionsList(in));
+          }
+          snapshot.dimensions.add(new DimensionsEntry(
+              new DimensionCache.Key(target, namespace, metricName, keyDimensions), dimensions, fetchedAt));
+        }
+        for (int i = in.readInt(); i > 0; i--) {
+          String ruleKey = readString(in);
+          long start = in.readLong();
+          List<List<Dimension>> dimensions = readDimensionsList(in);
+          Datapoint[] datapoints = new Datapoint[dimensions.size()];
+          for (int j = 0; j < datapoints.length; j++) {
+            datapoints[j] = readDatapoint(in);
+          }
+          snapshot.rules.add(new RuleEntry(ruleKey, start, dimensions, datapoints));
+        }
+      } finally {
+        in.close();
+      }
+      return snapshot;
+    }
+
+    private static void writeDimensionsList(DataOutputStream out, List<List<Dimension>> dimensionsList) throws IOException {
+      out.writeInt(dimensionsList.size());
+      for (List<Dimension> dimensions: dimensionsList) {
+        out.writeInt(dimensions.size());
+        for (Dimension dimension: dimensions) {
+          writeString(out, dimension.getName());
+          writeString(out, dimension.getValue());
+        }
+      }
+    }
+
+    private static List<List<Dimension>> readDimensionsList(DataInputStream in) throws IOException {
+      int size = in.readInt();
+      List<List<Dimension>> dimensionsList = new ArrayList<List<Dimension>>(size);
+      for (int i = 0; i < size; i++) {
+        int dimensionsSize = in.readInt();
+        List<Dimension> dimensions = new ArrayList<Dimension>(dimensionsSize);
+        for (int j = 0; j < dimensionsSize; j++) {
+          dimensions.add(new Dimension().withName(readString(in)).withValue(readString(in)));
+        }
+        dimensionsList.add(dimensions);
+      }
+      return dimensionsList;
+    }
+
+    private static void writeDatapoint(DataOutputStream out, Datapoint dp) throws IOException {
+      out.writeBoolean(dp != null);
+      if (dp == null) {
+        return;
+      }
+      out.writeLong(dp.getTimestamp().getTime());
+      writeNullableString(out, dp.getUnit());
+      writeNullableDouble(out, dp.getSum());
+      writeNullableDouble(out, dp.getSampleCount());
+      writeNullableDouble(out, dp.getMinimum());
+      writeNullableDouble(out, dp.getMaximum());
+      writeNullableDouble(out, dp.getAverage());
+      Map<String, Double> extended = dp.getExtendedStatistics();
+      out.writeInt(extended == null ? 0 : extended.size());
+      if (extended != null) {
+        for (Map.Entry<String, Double> entry: extended.entrySet()) {
+          writeString(out, entry.getKey());
+          out.writeDouble(entry.getValue());
+        }
+      }
+    }
+
+    private static Datapoint readDatapoint(DataInputStream in) throws IOException {
+      if (!in.readBoolean()) {
+        return null;
+      }
+      Datapoint dp = new Datapoint()
+          .withTimestamp(new Date(in.readLong()))
+          .withUnit(readNullableString(in))
+          .withSum(readNullableDouble(in))
+          .withSampleCount(readNullableDouble(in))
+          .withMinimum(readNullableDouble(in))
+          .withMaximum(readNullableDouble(in))
+          .withAverage(readNullableDouble(in));
+      for (int i = in.readInt(); i > 0; i--) {
+        dp.addExtendedStatisticsEntry(readString(in), in.readDouble());
+      }
+      return dp;
+    }
+
+    // writeUTF is limited to 64KB, which long regexes in rule keys could exceed.
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+      byte[] bytes = s.getBytes("UTF-8");
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+      byte[] bytes = new byte[in.readInt()];
+      in.readFully(bytes);
+      return new String(bytes, "UTF-8");
+    }
+
+    private static void writeNullableString(DataOutputStream out, String s) throws IOException {
+      out.writeBoolean(s != null);
+      if (s != null) {
+        writeString(out, s);
+      }
+    }
+
+    private static String readNullableString(DataInputStream in) throws IOException {
+      return in.readBoolean() ? readString(in) : null;
+    }
+
+    private static void writeNullableDouble(DataOutputStream out, Double d) throws IOException {
+      out.writeBoolean(d != null);
+      if (d != null) {
+        out.writeDouble(d);
+      }
+    }
+
+    private static Double readNullableDouble(DataInputStream in) throws IOException {
+      return in.readBoolean() ? Double.valueOf(in.readDouble()) : null;
+    }
+}
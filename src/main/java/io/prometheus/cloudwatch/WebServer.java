@@ -1,13 +1,18 @@
 package io.prometheus.cloudwatch;
 
-import io.prometheus.client.exporter.MetricsServlet;
+import io.prometheus.client.CollectorRegistry;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
 import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.yaml.snakeyaml.Yaml;
 import sun.misc.Signal;
 import sun.misc.SignalHandler;
 
@@ -22,20 +27,38 @@ public class WebServer {
         }
 
         configFilePath = args[1];
-        CloudWatchCollector collector = new CloudWatchCollector(new FileReader(configFilePath)).register();
+        CloudWatchCollector collector = new CloudWatchCollector(new FileReader(configFilePath));
 
         ReloadSignalHandler.start(collector);
 
+        // The server settings are only read at startup, they are not changed by reloads.
+        Map<String, Object> config = (Map<String, Object>)new Yaml().load(new FileReader(configFilePath));
+        if (config == null) {
+          config = new HashMap<String, Object>();
+        }
+
         int port = Integer.parseInt(args[0]);
-        Server server = new Server(port);
+        Server server = new Server();
+        SelectChannelConnector connector = new SelectChannelConnector();
+        connector.setPort(port);
+        if (config.containsKey("server_acceptors")) {
+          connector.setAcceptors(((Number)config.get("server_acceptors")).intValue());
+        }
+        server.addConnector(connector);
+        if (config.containsKey("server_max_threads")) {
+          int maxThreads = ((Number)config.get("server_max_threads")).intValue();
+          QueuedThreadPool threadPool = new QueuedThreadPool(maxThreads);
+          threadPool.setMinThreads(Math.min(threadPool.getMinThreads(), maxThreads));
+          server.setThreadPool(threadPool);
+        }
         ServletContextHandler context = new ServletContextHandler();
         context.setContextPath("/");
         server.setHandler(context);
-        context.addServlet(new ServletHolder(new MetricsServlet()), "/metrics");
+        context.addServlet(new ServletHolder(new StreamingMetricsServlet(collector, CollectorRegistry.defaultRegistry)), "/metrics");
+        context.addServlet(new ServletHolder(new BackfillServlet(collector)), "/backfill");
         context.addServlet(new ServletHolder(new DynamicReloadServlet(collector)), "/-/reload");
         context.addServlet(new ServletHolder(new HomePageServlet()), "/");
         server.start();
         server.join();
     }
 }
-
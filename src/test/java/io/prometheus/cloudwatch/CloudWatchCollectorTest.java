@@ -1,31 +1,55 @@
 package io.prometheus.cloudwatch;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Matchers.anyObject;
 import static org.mockito.Matchers.argThat;
 
+import com.amazonaws.AmazonServiceException;
 import com.amazonaws.regions.Region;
 import com.amazonaws.regions.RegionUtils;
 import com.amazonaws.services.cloudwatch.AmazonCloudWatchClient;
 import com.amazonaws.services.cloudwatch.model.Datapoint;
 import com.amazonaws.services.cloudwatch.model.Dimension;
 import com.amazonaws.services.cloudwatch.model.DimensionFilter;
+import com.amazonaws.services.cloudwatch.model.GetMetricDataRequest;
+import com.amazonaws.services.cloudwatch.model.GetMetricDataResult;
 import com.amazonaws.services.cloudwatch.model.GetMetricStatisticsRequest;
 import com.amazonaws.services.cloudwatch.model.GetMetricStatisticsResult;
 import com.amazonaws.services.cloudwatch.model.ListMetricsRequest;
 import com.amazonaws.services.cloudwatch.model.ListMetricsResult;
 import com.amazonaws.services.cloudwatch.model.Metric;
+import com.amazonaws.services.cloudwatch.model.MetricDataResult;
+import io.prometheus.client.Collector.MetricFamilySamples;
 import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.exporter.common.TextFormat;
+import java.io.File;
+import java.io.StringReader;
+import java.io.StringWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
 
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.ArgumentMatcher;
 import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 public class CloudWatchCollectorTest {
   AmazonCloudWatchClient client;
@@ -277,6 +301,105 @@ public class CloudWatchCollectorTest {
     assertNull(registry.getSampleValue("aws_elb_request_count_average", new String[]{"job", "instance", "availability_zone", "load_balancer_name"}, new String[]{"aws_elb", "", "a", "myOtherLB"}));
   }
 
+  @Test
+  public void testCompileRegexList() throws Exception {
+    List<Pattern> patterns = CloudWatchCollector.compileRegexList(Arrays.asList("myLB(.*)", "other", "(a)\\1"));
+    assertEquals(2, patterns.size());
+    assertTrue(CloudWatchCollector.regexListMatch(patterns, "myLB1"));
+    assertTrue(CloudWatchCollector.regexListMatch(patterns, "other"));
+    assertTrue(CloudWatchCollector.regexListMatch(patterns, "aa"));
+    assertFalse(CloudWatchCollector.regexListMatch(patterns, "otherLB"));
+    assertFalse(CloudWatchCollector.regexListMatch(patterns, "ab"));
+  }
+
+  @Test
+  public void testNameCache() throws Exception {
+    Double hitsBefore = CollectorRegistry.defaultRegistry.getSampleValue("cloudwatch_exporter_name_cache_hits_total");
+    assertEquals("aws_elb_request_count", CloudWatchCollector.snakeCaseName("AWS/ELB RequestCount"));
+    assertEquals("aws_elb_request_count", CloudWatchCollector.snakeCaseName("AWS/ELB RequestCount"));
+    assertEquals(1.0, CollectorRegistry.defaultRegistry.getSampleValue("cloudwatch_exporter_name_cache_hits_total") - hitsBefore, .01);
+  }
+
+  @Test
+  public void testStreamingMatchesTextFormat() throws Exception {
+    CloudWatchCollector collector = new CloudWatchCollector(
+        "---\nregion: reg\nmetrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount\n  aws_dimensions:\n  - AvailabilityZone\n  - LoadBalancerName\n  aws_extended_statistics:\n  - p99\n  aws_statistics:\n  - Sum\n  - Average", client);
+    Mockito.when(client.listMetrics((ListMetricsRequest)argThat(
+        new ListMetricsRequestMatcher().Namespace("AWS/ELB").MetricName("RequestCount").Dimensions("AvailabilityZone", "LoadBalancerName"))))
+        .thenReturn(new ListMetricsResult().withMetrics(
+            new Metric().withDimensions(new Dimension().withName("AvailabilityZone").withValue("a"), new Dimension().withName("LoadBalancerName").withValue("my\"LB\\")),
+            new Metric().withDimensions(new Dimension().withName("AvailabilityZone").withValue("b"), new Dimension().withName("LoadBalancerName").withValue("myLB"))));
+    HashMap<String, Double> extended = new HashMap<String, Double>();
+    extended.put("p99", 3.0);
+    Mockito.when(client.getMetricStatistics((GetMetricStatisticsRequest)anyObject()))
+        .thenReturn(new GetMetricStatisticsResult().withDatapoints(
+            new Datapoint().withTimestamp(new Date()).withSum(1.0).withAverage(2.0).withExtendedStatistics(extended).withUnit("Count")));
+
+    StringWriter expected = new StringWriter();
+    TextFormat.write004(expected, Collections.enumeration(collector.collect()));
+    StringWriter streamed = new StringWriter();
+    collector.collect(new TextFormatSink(streamed));
+
+    String duration = "(?m)^cloudwatch_exporter_scrape_duration_seconds .*$";
+    assertEquals(expected.toString().replaceAll(duration, ""), streamed.toString().replaceAll(duration, ""));
+    assertTrue(streamed.toString().contains("aws_elb_request_count_p99{job=\"aws_elb\",instance=\"\",availability_zone=\"a\",load_balancer_name=\"my\\\"LB\\\\\",} 3.0\n"));
+  }
+
+  @Test
+  public void testAcceptsGzip() throws Exception {
+    assertTrue(StreamingMetricsServlet.acceptsGzip("gzip"));
+    assertTrue(StreamingMetricsServlet.acceptsGzip("deflate, GZIP;q=0.5"));
+    assertFalse(StreamingMetricsServlet.acceptsGzip(null));
+    assertFalse(StreamingMetricsServlet.acceptsGzip("identity"));
+    assertFalse(StreamingMetricsServlet.acceptsGzip("gzip; q=0.0"));
+    assertFalse(StreamingMetricsServlet.acceptsGzip("x-gzip"));
+  }
+
+  @Test
+  public void testIncrementalFetch() throws Exception {
+    new CloudWatchCollector(
+        "---\nregion: reg\nrefresh_seconds: 0\nmetrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount\n  aws_statistics:\n  - Sum", client).register(registry);
+    final Date timestamp = new Date(System.currentTimeMillis() - 700 * 1000);
+    final List<Date> startTimes = new ArrayList<Date>();
+    Mockito.when(client.getMetricStatistics((GetMetricStatisticsRequest)anyObject())).thenAnswer(new Answer<GetMetricStatisticsResult>() {
+      public GetMetricStatisticsResult answer(InvocationOnMock invocation) {
+        startTimes.add(((GetMetricStatisticsRequest) invocation.getArguments()[0]).getStartTime());
+        if (startTimes.size() > 1) {
+          return new GetMetricStatisticsResult();
+        }
+        return new GetMetricStatisticsResult().withDatapoints(new Datapoint().withTimestamp(timestamp).withSum(2.0));
+      }
+    });
+
+    assertEquals(2.0, registry.getSampleValue("aws_elb_request_count_sum", new String[]{"job", "instance"}, new String[]{"aws_elb", ""}), .01);
+    // Only the last datapoint and newer ones are requested, and it is still exported if there are none.
+    assertEquals(2.0, registry.getSampleValue("aws_elb_request_count_sum", new String[]{"job", "instance"}, new String[]{"aws_elb", ""}), .01);
+    assertTrue(startTimes.get(0).before(timestamp));
+    assertEquals(timestamp, startTimes.get(1));
+  }
+
+  @Test
+  public void testTimestampsAndBackfill() throws Exception {
+    CloudWatchCollector collector = new CloudWatchCollector(
+        "---\nregion: reg\nset_timestamp: true\nbackfill: true\nmetrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount\n  aws_statistics:\n  - Sum", client);
+    long now = System.currentTimeMillis() / 1000 * 1000;
+    Mockito.when(client.getMetricStatistics((GetMetricStatisticsRequest)anyObject()))
+        .thenReturn(new GetMetricStatisticsResult().withDatapoints(
+            new Datapoint().withTimestamp(new Date(now - 660 * 1000)).withSum(2.0),
+            new Datapoint().withTimestamp(new Date(now - 720 * 1000)).withSum(1.0)));
+
+    StringWriter streamed = new StringWriter();
+    collector.collect(new TextFormatSink(streamed));
+    assertTrue(streamed.toString().contains("aws_elb_request_count_sum{job=\"aws_elb\",instance=\"\",} 2.0 " + (now - 660 * 1000) + "\n"));
+
+    StringWriter backfill = new StringWriter();
+    collector.backfill(new OpenMetricsSink(backfill));
+    assertEquals("# HELP aws_elb_request_count_sum CloudWatch metric AWS/ELB RequestCount Dimensions: null Statistic: Sum\n"
+        + "# TYPE aws_elb_request_count_sum gauge\n"
+        + "aws_elb_request_count_sum{job=\"aws_elb\",instance=\"\"} 1.0 " + (now / 1000 - 720) + ".000\n"
+        + "aws_elb_request_count_sum{job=\"aws_elb\",instance=\"\"} 2.0 " + (now / 1000 - 660) + ".000\n", backfill.toString());
+  }
+
   @Test
   public void testGetDimensionsUsesNextToken() throws Exception {
     new CloudWatchCollector(
@@ -309,6 +432,111 @@ public class CloudWatchCollectorTest {
     assertEquals("https://monitoring.cn-north-1.amazonaws.com.cn", cn_collector.getMonitoringEndpoint(cnNorth));
   }
 
+  @Test
+  public void testTargets() throws Exception {
+    new CloudWatchCollector(
+        "---\ntargets:\n- region: reg1\n- region: reg2\n  role_arn: arn:aws:iam::123456789012:role/exporter\nmetrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount\n  aws_statistics:\n  - Average", client).register(registry);
+
+    Mockito.when(client.getMetricStatistics((GetMetricStatisticsRequest)argThat(
+        new GetMetricStatisticsRequestMatcher().Namespace("AWS/ELB").MetricName("RequestCount"))))
+        .thenReturn(new GetMetricStatisticsResult().withDatapoints(
+            new Datapoint().withTimestamp(new Date()).withAverage(2.0)));
+
+    assertEquals(2.0, registry.getSampleValue("aws_elb_request_count_average", new String[]{"job", "instance", "region", "account_id"}, new String[]{"aws_elb", "", "reg1", ""}), .01);
+    assertEquals(2.0, registry.getSampleValue("aws_elb_request_count_average", new String[]{"job", "instance", "region", "account_id"}, new String[]{"aws_elb", "", "reg2", "123456789012"}), .01);
+    assertNull(registry.getSampleValue("aws_elb_request_count_average", new String[]{"job", "instance"}, new String[]{"aws_elb", ""}));
+  }
+
+  @Test
+  public void testSharding() throws Exception {
+    List<Metric> metrics = new ArrayList<Metric>();
+    for (int i = 0; i < 100; i++) {
+      metrics.add(new Metric().withDimensions(new Dimension().withName("LoadBalancerName").withValue("lb" + i)));
+    }
+    Mockito.when(client.listMetrics((ListMetricsRequest)argThat(
+        new ListMetricsRequestMatcher().Namespace("AWS/ELB").MetricName("RequestCount").Dimensions("LoadBalancerName"))))
+        .thenReturn(new ListMetricsResult().withMetrics(metrics));
+    Mockito.when(client.getMetricStatistics((GetMetricStatisticsRequest)anyObject()))
+        .thenReturn(new GetMetricStatisticsResult().withDatapoints(
+            new Datapoint().withTimestamp(new Date()).withAverage(1.0)));
+
+    Set<String> seen = new HashSet<String>();
+    int billingShards = 0;
+    for (int shard = 0; shard < 3; shard++) {
+      CloudWatchCollector collector = new CloudWatchCollector(
+          "---\nregion: reg\nshard_count: 3\nshard_index: " + shard + "\nshard_by_dimensions: true\nmetrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount\n  aws_dimensions:\n  - LoadBalancerName\n  aws_statistics:\n  - Average"
+          + "\n- aws_namespace: AWS/Billing\n  aws_metric_name: EstimatedCharges\n  aws_statistics:\n  - Average", client);
+      int samples = 0;
+      for (MetricFamilySamples mfs: collector.collect()) {
+        if (mfs.name.equals("aws_billing_estimated_charges_average")) {
+          billingShards += mfs.samples.size();
+        }
+        if (!mfs.name.equals("aws_elb_request_count_average")) {
+          continue;
+        }
+        for (MetricFamilySamples.Sample sample: mfs.samples) {
+          assertTrue(seen.add(sample.labelValues.get(2)));
+          samples++;
+        }
+      }
+      // Each shard gets a share of the load balancers.
+      assertTrue(samples > 10);
+    }
+    assertEquals(100, seen.size());
+    // A metric without dimensions is collected by one shard.
+    assertEquals(1, billingShards);
+
+    // Growing from 3 to 4 shards only moves keys to the new shard.
+    for (long key = 0; key < 1000; key++) {
+      int before = CloudWatchCollector.jumpConsistentHash(key, 3);
+      int after = CloudWatchCollector.jumpConsistentHash(key, 4);
+      assertTrue(after == before || after == 3);
+    }
+  }
+
+  @Test
+  public void testReloadKeepsUnchangedRules() throws Exception {
+    String rules = "metrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount\n- aws_namespace: AWS/ELB\n  aws_metric_name: Latency\n  period_seconds: ";
+    CloudWatchCollector collector = new CloudWatchCollector("---\nregion: reg\n" + rules + "60", client);
+    CloudWatchCollector.ActiveConfig oldConfig = collector.activeConfig.get();
+
+    collector.loadConfig(new StringReader("---\nregion: reg\n" + rules + "300"), client);
+    CloudWatchCollector.ActiveConfig newConfig = collector.activeConfig.get();
+    assertTrue(newConfig != oldConfig);
+    assertTrue(newConfig.rules.get(0) == oldConfig.rules.get(0));
+    assertTrue(newConfig.rules.get(1) != oldConfig.rules.get(1));
+    assertEquals(300, newConfig.rules.get(1).periodSeconds);
+    assertTrue(newConfig.targets.get(0) == oldConfig.targets.get(0));
+    // The replaced config is released, new scrapes use the new one.
+    assertEquals(0, oldConfig.users.get());
+    assertEquals(1, newConfig.users.get());
+
+    // Nothing is kept from a different region.
+    collector.loadConfig(new StringReader("---\nregion: other\n" + rules + "300"), client);
+    assertTrue(collector.activeConfig.get().rules.get(0) != newConfig.rules.get(0));
+
+    // An invalid config leaves the active one in place.
+    CloudWatchCollector.ActiveConfig activeConfig = collector.activeConfig.get();
+    try {
+      collector.loadConfig(new StringReader("---\nregion: other\n"), client);
+      fail();
+    } catch (IllegalArgumentException e) {
+    }
+    assertTrue(collector.activeConfig.get() == activeConfig);
+
+    // As does one with a target no client can be made for, keeping the rate limits of the active targets.
+    collector.loadConfig(new StringReader("---\nregion: us-east-1\nrequests_per_second:\n  ListMetrics: 10\n" + rules + "300"), null);
+    activeConfig = collector.activeConfig.get();
+    Map<String, RateLimiter> rateLimiters = activeConfig.targets.get(0).rateLimiters;
+    try {
+      collector.loadConfig(new StringReader("---\ntargets:\n- region: us-east-1\n- region:\nrequests_per_second:\n  ListMetrics: 5\n" + rules + "300"), null);
+      fail();
+    } catch (IllegalArgumentException e) {
+    }
+    assertTrue(collector.activeConfig.get() == activeConfig);
+    assertTrue(activeConfig.targets.get(0).rateLimiters == rateLimiters);
+  }
+
   @Test
   public void testExtendedStatistics() throws Exception {
     new CloudWatchCollector(
@@ -361,4 +589,654 @@ public class CloudWatchCollectorTest {
     assertEquals(2.0, registry.getSampleValue("aws_dynamodb_online_index_consumed_write_capacity_sum", new String[]{"job", "instance", "table_name", "global_secondary_index_name"}, new String[]{"aws_dynamodb", "", "myTable", "myIndex"}), .01);
     assertEquals(3.0, registry.getSampleValue("aws_dynamodb_consumed_read_capacity_units_sum", new String[]{"job", "instance", "table_name"}, new String[]{"aws_dynamodb", "", "myTable"}), .01);
   }
+
+  @Test
+  public void testMaxConcurrency() throws Exception {
+    new CloudWatchCollector(
+        "---\nregion: reg\nmax_concurrency: 4\nmetrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount\n  max_concurrency: 2\n  aws_dimensions:\n  - LoadBalancerName\n- aws_namespace: AWS/ELB\n  aws_metric_name: Latency", client).register(registry);
+
+    Mockito.when(client.listMetrics((ListMetricsRequest)argThat(
+        new ListMetricsRequestMatcher().Namespace("AWS/ELB").MetricName("RequestCount").Dimensions("LoadBalancerName"))))
+        .thenReturn(new ListMetricsResult().withMetrics(
+          new Metric().withDimensions(new Dimension().withName("LoadBalancerName").withValue("lb1")),
+          new Metric().withDimensions(new Dimension().withName("LoadBalancerName").withValue("lb2")),
+          new Metric().withDimensions(new Dimension().withName("LoadBalancerName").withValue("lb3"))));
+
+    for (int i = 1; i <= 3; i++) {
+      Mockito.when(client.getMetricStatistics((GetMetricStatisticsRequest)argThat(
+          new GetMetricStatisticsRequestMatcher().Namespace("AWS/ELB").MetricName("RequestCount").Dimension("LoadBalancerName", "lb" + i))))
+          .thenReturn(new GetMetricStatisticsResult().withDatapoints(
+              new Datapoint().withTimestamp(new Date()).withSum((double) i)));
+    }
+    Mockito.when(client.getMetricStatistics((GetMetricStatisticsRequest)argThat(
+        new GetMetricStatisticsRequestMatcher().Namespace("AWS/ELB").MetricName("Latency"))))
+        .thenReturn(new GetMetricStatisticsResult().withDatapoints(
+            new Datapoint().withTimestamp(new Date()).withAverage(4.0)));
+
+    for (int i = 1; i <= 3; i++) {
+      assertEquals(i, registry.getSampleValue("aws_elb_request_count_sum", new String[]{"job", "instance", "load_balancer_name"}, new String[]{"aws_elb", "", "lb" + i}), .01);
+    }
+    assertEquals(4.0, registry.getSampleValue("aws_elb_latency_average", new String[]{"job", "instance"}, new String[]{"aws_elb", ""}), .01);
+    assertEquals(0.0, registry.getSampleValue("cloudwatch_exporter_scrape_error"), .01);
+  }
+
+  @Test
+  public void testFetchesDontWaitForListMetricsOfOtherRules() throws Exception {
+    new CloudWatchCollector(
+        "---\nregion: reg\nmax_concurrency: 2\nmetrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount\n  aws_dimensions:\n  - LoadBalancerName\n- aws_namespace: AWS/ELB\n  aws_metric_name: Latency\n  aws_dimensions:\n  - LoadBalancerName", client).register(registry);
+
+    // The ListMetrics query of the first rule only returns once the second rule has fetched its datapoints.
+    final CountDownLatch fetched = new CountDownLatch(1);
+    final boolean[] waited = new boolean[1];
+    Mockito.when(client.listMetrics((ListMetricsRequest)argThat(
+        new ListMetricsRequestMatcher().Namespace("AWS/ELB").MetricName("RequestCount").Dimensions("LoadBalancerName"))))
+        .thenAnswer(new Answer<ListMetricsResult>() {
+          public ListMetricsResult answer(InvocationOnMock invocation) throws Throwable {
+            waited[0] = fetched.await(10, TimeUnit.SECONDS);
+            return new ListMetricsResult().withMetrics(
+                new Metric().withDimensions(new Dimension().withName("LoadBalancerName").withValue("lb1")));
+          }
+        });
+    Mockito.when(client.listMetrics((ListMetricsRequest)argThat(
+        new ListMetricsRequestMatcher().Namespace("AWS/ELB").MetricName("Latency").Dimensions("LoadBalancerName"))))
+        .thenReturn(new ListMetricsResult().withMetrics(
+            new Metric().withDimensions(new Dimension().withName("LoadBalancerName").withValue("lb1"))));
+
+    Mockito.when(client.getMetricStatistics((GetMetricStatisticsRequest)argThat(
+        new GetMetricStatisticsRequestMatcher().Namespace("AWS/ELB").MetricName("RequestCount").Dimension("LoadBalancerName", "lb1"))))
+        .thenReturn(new GetMetricStatisticsResult().withDatapoints(
+            new Datapoint().withTimestamp(new Date()).withSum(1.0)));
+    Mockito.when(client.getMetricStatistics((GetMetricStatisticsRequest)argThat(
+        new GetMetricStatisticsRequestMatcher().Namespace("AWS/ELB").MetricName("Latency").Dimension("LoadBalancerName", "lb1"))))
+        .thenAnswer(new Answer<GetMetricStatisticsResult>() {
+          public GetMetricStatisticsResult answer(InvocationOnMock invocation) {
+            fetched.countDown();
+            return new GetMetricStatisticsResult().withDatapoints(
+                new Datapoint().withTimestamp(new Date()).withAverage(2.0));
+          }
+        });
+
+    assertEquals(1.0, registry.getSampleValue("aws_elb_request_count_sum", new String[]{"job", "instance", "load_balancer_name"}, new String[]{"aws_elb", "", "lb1"}), .01);
+    assertEquals(2.0, registry.getSampleValue("aws_elb_latency_average", new String[]{"job", "instance", "load_balancer_name"}, new String[]{"aws_elb", "", "lb1"}), .01);
+    assertTrue(waited[0]);
+  }
+
+  @Test
+  public void testConcurrentScrapesAreCoalesced() throws Exception {
+    final CloudWatchCollector collector = new CloudWatchCollector(
+        "---\nregion: reg\nrefresh_seconds: 0\nmetrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount", client);
+
+    final CountDownLatch release = new CountDownLatch(1);
+    final AtomicInteger requests = new AtomicInteger();
+    Mockito.when(client.getMetricStatistics((GetMetricStatisticsRequest)argThat(
+        new GetMetricStatisticsRequestMatcher().Namespace("AWS/ELB").MetricName("RequestCount"))))
+        .thenAnswer(new Answer<GetMetricStatisticsResult>() {
+          public GetMetricStatisticsResult answer(InvocationOnMock invocation) throws Throwable {
+            requests.incrementAndGet();
+            release.await(10, TimeUnit.SECONDS);
+            return new GetMetricStatisticsResult().withDatapoints(
+                new Datapoint().withTimestamp(new Date()).withSum(2.0));
+          }
+        });
+
+    final List<List<MetricFamilySamples>> results = Collections.synchronizedList(new ArrayList<List<MetricFamilySamples>>());
+    Thread[] threads = new Thread[2];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread() {
+        public void run() {
+          results.add(collector.collect());
+        }
+      };
+      threads[i].start();
+      // Wait for the scrape to be started, or joined.
+      while (threads[i].getState() != Thread.State.WAITING && threads[i].getState() != Thread.State.TIMED_WAITING) {
+        Thread.sleep(1);
+      }
+    }
+    release.countDown();
+    for (Thread thread: threads) {
+      thread.join();
+    }
+
+    assertEquals(1, requests.get());
+    assertEquals(2, results.size());
+    assertEquals(results.get(0), results.get(1));
+
+    // Without scrape_cache_seconds, the next scrape makes its own requests.
+    collector.collect();
+    assertEquals(2, requests.get());
+  }
+
+  @Test
+  public void testUncachedScrapeRecordsNothing() throws Exception {
+    final CloudWatchCollector collector = new CloudWatchCollector(
+        "---\nregion: reg\nmetrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount", client);
+    Mockito.when(client.getMetricStatistics((GetMetricStatisticsRequest)argThat(
+        new GetMetricStatisticsRequestMatcher().Namespace("AWS/ELB").MetricName("RequestCount"))))
+        .thenReturn(new GetMetricStatisticsResult().withDatapoints(
+            new Datapoint().withTimestamp(new Date()).withSum(2.0)));
+
+    final List<Integer> recorded = new ArrayList<Integer>();
+    collector.collect(new CloudWatchCollector.SampleSink() {
+      public void sample(String name, String help, List<String> labelNames, List<String> labelPrefix, List<Dimension> dimensions, double value, Long timestampMs) {
+        recorded.add(collector.sharedScrape.recorded());
+      }
+      public void metricFamily(MetricFamilySamples mfs) {
+        recorded.add(collector.sharedScrape.recorded());
+      }
+    });
+    assertEquals(Collections.nCopies(recorded.size(), 0), recorded);
+    assertTrue(recorded.size() > 1);
+
+    // Once samples went by unrecorded, a later collect can't join and runs its own scrape.
+    SharedScrape shared = new SharedScrape(null, null, false);
+    shared.sample("a", "", Collections.<String>emptyList(), Collections.<String>emptyList(), Collections.<Dimension>emptyList(), 1, null);
+    assertFalse(shared.join());
+    assertEquals(0, shared.recorded());
+    shared = new SharedScrape(null, null, false);
+    assertTrue(shared.join());
+    shared.sample("a", "", Collections.<String>emptyList(), Collections.<String>emptyList(), Collections.<Dimension>emptyList(), 1, null);
+    assertEquals(1, shared.recorded());
+  }
+
+  @Test
+  public void testScrapeCache() throws Exception {
+    CloudWatchCollector collector = new CloudWatchCollector(
+        "---\nregion: reg\nrefresh_seconds: 0\nscrape_cache_seconds: 60\nmetrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount", client);
+    collector.register(registry);
+
+    Mockito.when(client.getMetricStatistics((GetMetricStatisticsRequest)argThat(
+        new GetMetricStatisticsRequestMatcher().Namespace("AWS/ELB").MetricName("RequestCount"))))
+        .thenReturn(new GetMetricStatisticsResult().withDatapoints(
+            new Datapoint().withTimestamp(new Date()).withSum(2.0)))
+        .thenReturn(new GetMetricStatisticsResult().withDatapoints(
+            new Datapoint().withTimestamp(new Date()).withSum(3.0)));
+
+    assertEquals(2.0, registry.getSampleValue("aws_elb_request_count_sum", new String[]{"job", "instance"}, new String[]{"aws_elb", ""}), .01);
+    assertEquals(2.0, registry.getSampleValue("aws_elb_request_count_sum", new String[]{"job", "instance"}, new String[]{"aws_elb", ""}), .01);
+    Mockito.verify(client, Mockito.times(1)).getMetricStatistics((GetMetricStatisticsRequest)anyObject());
+
+    // A reload starts afresh.
+    collector.loadConfig(new StringReader(
+        "---\nregion: reg\nrefresh_seconds: 0\nscrape_cache_seconds: 60\nmetrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount"), client);
+    assertEquals(3.0, registry.getSampleValue("aws_elb_request_count_sum", new String[]{"job", "instance"}, new String[]{"aws_elb", ""}), .01);
+  }
+
+  @Test
+  public void testRefreshSeconds() throws Exception {
+    new CloudWatchCollector(
+        "---\nregion: reg\nrefresh_seconds: 2147483647\nmetrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount\n- aws_namespace: AWS/ELB\n  aws_metric_name: Latency\n  refresh_seconds: 0", client).register(registry);
+
+    Mockito.when(client.getMetricStatistics((GetMetricStatisticsRequest)argThat(
+        new GetMetricStatisticsRequestMatcher().Namespace("AWS/ELB").MetricName("RequestCount"))))
+        .thenReturn(new GetMetricStatisticsResult().withDatapoints(
+            new Datapoint().withTimestamp(new Date()).withSum(2.0)))
+        .thenReturn(new GetMetricStatisticsResult().withDatapoints(
+            new Datapoint().withTimestamp(new Date()).withSum(3.0)));
+    Mockito.when(client.getMetricStatistics((GetMetricStatisticsRequest)argThat(
+        new GetMetricStatisticsRequestMatcher().Namespace("AWS/ELB").MetricName("Latency"))))
+        .thenReturn(new GetMetricStatisticsResult().withDatapoints(
+            new Datapoint().withTimestamp(new Date()).withAverage(4.0)))
+        .thenReturn(new GetMetricStatisticsResult().withDatapoints(
+            new Datapoint().withTimestamp(new Date()).withAverage(5.0)));
+
+    assertEquals(2.0, registry.getSampleValue("aws_elb_request_count_sum", new String[]{"job", "instance"}, new String[]{"aws_elb", ""}), .01);
+    // RequestCount is served from the previous scrape. Its only interval boundary within reach is in 2038.
+    assertEquals(2.0, registry.getSampleValue("aws_elb_request_count_sum", new String[]{"job", "instance"}, new String[]{"aws_elb", ""}), .01);
+    assertEquals(5.0, registry.getSampleValue("aws_elb_latency_average", new String[]{"job", "instance"}, new String[]{"aws_elb", ""}), .01);
+  }
+
+  @Test
+  public void testIsRefreshDue() throws Exception {
+    CloudWatchCollector.MetricRule rule = new CloudWatchCollector.MetricRule();
+    rule.delaySeconds = 600;
+    rule.refreshSeconds = 300;
+    long boundary = 1000L * (600 + 300 * 1000);
+    assertFalse(CloudWatchCollector.isRefreshDue(rule, boundary, boundary + 299999));
+    assertTrue(CloudWatchCollector.isRefreshDue(rule, boundary - 1, boundary));
+    assertTrue(CloudWatchCollector.isRefreshDue(rule, boundary, boundary + 300000));
+    rule.refreshSeconds = 0;
+    assertTrue(CloudWatchCollector.isRefreshDue(rule, boundary, boundary));
+  }
+
+  @Test
+  public void testWarmStartSnapshot() throws Exception {
+    File file = File.createTempFile("cloudwatch_exporter", ".snapshot");
+    file.delete();
+    file.deleteOnExit();
+    String config = "---\nregion: reg\nsnapshot_file: " + file.getPath() + "\nmetrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount\n  aws_dimensions:\n  - LoadBalancerName\n";
+    CloudWatchCollector collector = new CloudWatchCollector(config + "  refresh_seconds: 0", client);
+    Mockito.when(client.listMetrics((ListMetricsRequest)argThat(
+        new ListMetricsRequestMatcher().Namespace("AWS/ELB").MetricName("RequestCount").Dimensions("LoadBalancerName"))))
+        .thenReturn(new ListMetricsResult().withMetrics(
+            new Metric().withDimensions(new Dimension().withName("LoadBalancerName").withValue("myLB"))));
+    Mockito.when(client.getMetricStatistics((GetMetricStatisticsRequest)argThat(
+        new GetMetricStatisticsRequestMatcher().Namespace("AWS/ELB").MetricName("RequestCount").Dimension("LoadBalancerName", "myLB"))))
+        .thenReturn(new GetMetricStatisticsResult().withDatapoints(
+            new Datapoint().withTimestamp(new Date()).withSum(2.0).withUnit("Count")));
+    collector.collect();
+    collector.saveSnapshot();
+
+    // Restored results are served while fresh ones are fetched in the background.
+    AmazonCloudWatchClient restartedClient = Mockito.mock(AmazonCloudWatchClient.class);
+    final CountDownLatch release = new CountDownLatch(1);
+    Mockito.when(restartedClient.listMetrics((ListMetricsRequest)anyObject()))
+        .thenReturn(new ListMetricsResult().withMetrics(
+            new Metric().withDimensions(new Dimension().withName("LoadBalancerName").withValue("myLB"))));
+    Mockito.when(restartedClient.getMetricStatistics((GetMetricStatisticsRequest)anyObject()))
+        .thenAnswer(new Answer<GetMetricStatisticsResult>() {
+          public GetMetricStatisticsResult answer(InvocationOnMock invocation) throws Throwable {
+            release.await(10, TimeUnit.SECONDS);
+            return new GetMetricStatisticsResult().withDatapoints(
+                new Datapoint().withTimestamp(new Date()).withSum(3.0));
+          }
+        });
+    CollectorRegistry restartedRegistry = new CollectorRegistry();
+    new CloudWatchCollector(config + "  refresh_seconds: 0", restartedClient).register(restartedRegistry);
+    String[] labelNames = new String[]{"job", "instance", "load_balancer_name"};
+    String[] labelValues = new String[]{"aws_elb", "", "myLB"};
+    assertEquals(2.0, restartedRegistry.getSampleValue("aws_elb_request_count_sum", labelNames, labelValues), .01);
+    release.countDown();
+    for (int i = 0; i < 1000 && restartedRegistry.getSampleValue("aws_elb_request_count_sum", labelNames, labelValues) != 3.0; i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(3.0, restartedRegistry.getSampleValue("aws_elb_request_count_sum", labelNames, labelValues), .01);
+
+    // Results that are still current are used as is, without any requests.
+    collector = new CloudWatchCollector(config + "  refresh_seconds: 31536000", client);
+    collector.collect();
+    collector.saveSnapshot();
+    AmazonCloudWatchClient unusedClient = Mockito.mock(AmazonCloudWatchClient.class);
+    CollectorRegistry currentRegistry = new CollectorRegistry();
+    new CloudWatchCollector(config + "  refresh_seconds: 31536000", unusedClient).register(currentRegistry);
+    assertEquals(2.0, currentRegistry.getSampleValue("aws_elb_request_count_sum", labelNames, labelValues), .01);
+    Mockito.verifyZeroInteractions(unusedClient);
+  }
+
+  @Test
+  public void testGetMetricData() throws Exception {
+    new CloudWatchCollector(
+        "---\nregion: reg\nrefresh_seconds: 0\nuse_get_metric_data: true\nmetrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: Latency\n  aws_dimensions:\n  - LoadBalancerName\n  aws_statistics:\n  - Average\n  aws_extended_statistics:\n  - p95", client).register(registry);
+
+    Mockito.when(client.listMetrics((ListMetricsRequest)argThat(
+        new ListMetricsRequestMatcher().Namespace("AWS/ELB").MetricName("Latency").Dimensions("LoadBalancerName"))))
+        .thenReturn(new ListMetricsResult().withMetrics(
+          new Metric().withDimensions(new Dimension().withName("LoadBalancerName").withValue("myLB")),
+          new Metric().withDimensions(new Dimension().withName("LoadBalancerName").withValue("myOtherLB"))));
+
+    // Queries are numbered by dimension set then statistic, and results may span pages.
+    Mockito.when(client.getMetricData((GetMetricDataRequest)anyObject())).thenAnswer(new Answer<GetMetricDataResult>() {
+      public GetMetricDataResult answer(InvocationOnMock invocation) {
+        GetMetricDataRequest request = (GetMetricDataRequest) invocation.getArguments()[0];
+        if (request.getNextToken() == null) {
+          return new GetMetricDataResult().withNextToken("ABC").withMetricDataResults(
+              new MetricDataResult().withId("q0").withTimestamps(new Date(2), new Date(1)).withValues(1.0, 9.0),
+              new MetricDataResult().withId("q1").withTimestamps(new Date(2)).withValues(2.0));
+        }
+        // An older value of q0 on a later page doesn't replace the newest one.
+        return new GetMetricDataResult().withMetricDataResults(
+            new MetricDataResult().withId("q0").withTimestamps(new Date(0)).withValues(10.0),
+            new MetricDataResult().withId("q2").withTimestamps(new Date(2)).withValues(3.0),
+            new MetricDataResult().withId("q3").withTimestamps(new Date(2)).withValues(4.0));
+      }
+    });
+
+    assertEquals(1.0, registry.getSampleValue("aws_elb_latency_average", new String[]{"job", "instance", "load_balancer_name"}, new String[]{"aws_elb", "", "myLB"}), .01);
+    assertEquals(2.0, registry.getSampleValue("aws_elb_latency_p95", new String[]{"job", "instance", "load_balancer_name"}, new String[]{"aws_elb", "", "myLB"}), .01);
+    assertEquals(3.0, registry.getSampleValue("aws_elb_latency_average", new String[]{"job", "instance", "load_balancer_name"}, new String[]{"aws_elb", "", "myOtherLB"}), .01);
+    assertEquals(4.0, registry.getSampleValue("aws_elb_latency_p95", new String[]{"job", "instance", "load_balancer_name"}, new String[]{"aws_elb", "", "myOtherLB"}), .01);
+    Mockito.verify(client, Mockito.times(8)).getMetricData((GetMetricDataRequest)anyObject());
+    Mockito.verify(client, Mockito.never()).getMetricStatistics((GetMetricStatisticsRequest)anyObject());
+  }
+
+  @Test
+  public void testDimensionsCache() throws Exception {
+    new CloudWatchCollector(
+        "---\nregion: reg\ndimensions_cache_ttl_seconds: 3600\nmetrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount\n  aws_dimensions:\n  - LoadBalancerName", client).register(registry);
+
+    Mockito.when(client.listMetrics((ListMetricsRequest)argThat(
+        new ListMetricsRequestMatcher().Namespace("AWS/ELB").MetricName("RequestCount").Dimensions("LoadBalancerName"))))
+        .thenReturn(new ListMetricsResult().withMetrics(
+          new Metric().withDimensions(new Dimension().withName("LoadBalancerName").withValue("myLB"))));
+    Mockito.when(client.getMetricStatistics((GetMetricStatisticsRequest)argThat(
+        new GetMetricStatisticsRequestMatcher().Namespace("AWS/ELB").MetricName("RequestCount").Dimension("LoadBalancerName", "myLB"))))
+        .thenReturn(new GetMetricStatisticsResult().withDatapoints(
+            new Datapoint().withTimestamp(new Date()).withSum(2.0)));
+
+    assertEquals(2.0, registry.getSampleValue("aws_elb_request_count_sum", new String[]{"job", "instance", "load_balancer_name"}, new String[]{"aws_elb", "", "myLB"}), .01);
+    assertEquals(2.0, registry.getSampleValue("aws_elb_request_count_sum", new String[]{"job", "instance", "load_balancer_name"}, new String[]{"aws_elb", "", "myLB"}), .01);
+    assertNotNull(registry.getSampleValue("cloudwatch_exporter_dimension_cache_age_seconds", new String[]{"region", "account_id", "namespace", "metric_name", "dimensions"}, new String[]{"reg", "", "AWS/ELB", "RequestCount", "[LoadBalancerName]"}));
+
+    Mockito.verify(client, Mockito.times(1)).listMetrics((ListMetricsRequest)anyObject());
+  }
+
+  @Test
+  public void testBackgroundPolling() throws Exception {
+    Mockito.when(client.getMetricStatistics((GetMetricStatisticsRequest)argThat(
+        new GetMetricStatisticsRequestMatcher().Namespace("AWS/ELB").MetricName("RequestCount"))))
+        .thenReturn(new GetMetricStatisticsResult().withDatapoints(
+            new Datapoint().withTimestamp(new Date()).withSum(2.0)));
+
+    new CloudWatchCollector(
+        "---\nregion: reg\nbackground_polling: true\nmetrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount", client).register(registry);
+
+    // The first poll runs as soon as the collector is created.
+    for (int i = 0; i < 100 && registry.getSampleValue("aws_elb_request_count_sum", new String[]{"job", "instance"}, new String[]{"aws_elb", ""}) == null; i++) {
+      Thread.sleep(50);
+    }
+    assertEquals(2.0, registry.getSampleValue("aws_elb_request_count_sum", new String[]{"job", "instance"}, new String[]{"aws_elb", ""}), .01);
+    assertNotNull(registry.getSampleValue("cloudwatch_exporter_snapshot_timestamp_seconds", new String[]{"region", "account_id", "namespace", "metric_name"}, new String[]{"reg", "", "AWS/ELB", "RequestCount"}));
+    assertEquals(2.0, registry.getSampleValue("aws_elb_request_count_sum", new String[]{"job", "instance"}, new String[]{"aws_elb", ""}), .01);
+
+    // Serving the snapshot does not call CloudWatch.
+    Mockito.verify(client, Mockito.times(1)).getMetricStatistics((GetMetricStatisticsRequest)anyObject());
+  }
+
+  @Test
+  public void testBackgroundPollingTargetsShareFamilies() throws Exception {
+    Mockito.when(client.getMetricStatistics((GetMetricStatisticsRequest)argThat(
+        new GetMetricStatisticsRequestMatcher().Namespace("AWS/ELB").MetricName("RequestCount"))))
+        .thenReturn(new GetMetricStatisticsResult().withDatapoints(
+            new Datapoint().withTimestamp(new Date()).withSum(2.0)));
+
+    CloudWatchCollector collector = new CloudWatchCollector(
+        "---\ntargets:\n- region: reg1\n- region: reg2\nbackground_polling: true\nmetrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount", client);
+    collector.register(registry);
+    for (int i = 0; i < 100 && registry.getSampleValue("aws_elb_request_count_sum", new String[]{"job", "instance", "region", "account_id"}, new String[]{"aws_elb", "", "reg2", ""}) == null; i++) {
+      Thread.sleep(50);
+    }
+
+    // Both targets' samples are in a single family.
+    int families = 0;
+    for (MetricFamilySamples mfs: collector.collect()) {
+      if (mfs.name.equals("aws_elb_request_count_sum")) {
+        families++;
+        assertEquals(2, mfs.samples.size());
+      }
+    }
+    assertEquals(1, families);
+  }
+
+  @Test
+  public void testRemovedRulePollIsDiscarded() throws Exception {
+    final CountDownLatch polling = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    Mockito.when(client.getMetricStatistics((GetMetricStatisticsRequest)argThat(
+        new GetMetricStatisticsRequestMatcher().Namespace("AWS/ELB").MetricName("RequestCount"))))
+        .thenAnswer(new Answer<GetMetricStatisticsResult>() {
+          public GetMetricStatisticsResult answer(InvocationOnMock invocation) throws Throwable {
+            polling.countDown();
+            release.await(10, TimeUnit.SECONDS);
+            return new GetMetricStatisticsResult().withDatapoints(
+                new Datapoint().withTimestamp(new Date()).withSum(2.0));
+          }
+        });
+    CloudWatchCollector collector = new CloudWatchCollector(
+        "---\nregion: reg\nbackground_polling: true\nmetrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount", client);
+    CloudWatchCollector.ActiveConfig oldConfig = collector.activeConfig.get();
+    assertTrue(polling.await(10, TimeUnit.SECONDS));
+
+    // The rule is removed while its poll is running, whose results are then dropped.
+    collector.loadConfig(new StringReader(
+        "---\nregion: reg\nbackground_polling: true\nmetrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: Latency"), client);
+    release.countDown();
+    for (int i = 0; i < 1000 && oldConfig.users.get() > 0; i++) {
+      Thread.sleep(10);
+    }
+    Thread.sleep(100);
+    assertFalse(collector.snapshots.containsKey(oldConfig.rules.get(0)));
+  }
+
+  @Test
+  public void testListMetricsPerNamespace() throws Exception {
+    new CloudWatchCollector(
+        "---\nregion: reg\nrefresh_seconds: 0\nlist_metrics_per_namespace: true\nmetrics:\n- aws_namespace: AWS/ElastiCache\n  aws_metric_name: CPUUtilization\n  aws_dimensions:\n  - CacheClusterId\n- aws_namespace: AWS/ElastiCache\n  aws_metric_name: FreeableMemory\n  aws_dimensions:\n  - CacheClusterId\n  aws_dimension_select:\n    CacheClusterId:\n    - myCluster", client).register(registry);
+
+    Mockito.when(client.listMetrics((ListMetricsRequest)argThat(
+        new ListMetricsRequestMatcher().Namespace("AWS/ElastiCache").Dimensions("CacheClusterId"))))
+        .thenReturn(new ListMetricsResult().withMetrics(
+          new Metric().withMetricName("CPUUtilization").withDimensions(new Dimension().withName("CacheClusterId").withValue("myCluster")),
+          new Metric().withMetricName("FreeableMemory").withDimensions(new Dimension().withName("CacheClusterId").withValue("myCluster")),
+          new Metric().withMetricName("FreeableMemory").withDimensions(new Dimension().withName("CacheClusterId").withValue("myOtherCluster")),
+          new Metric().withMetricName("SwapUsage").withDimensions(new Dimension().withName("CacheClusterId").withValue("myCluster"))));
+
+    Mockito.when(client.getMetricStatistics((GetMetricStatisticsRequest)argThat(
+        new GetMetricStatisticsRequestMatcher().Namespace("AWS/ElastiCache").MetricName("CPUUtilization").Dimension("CacheClusterId", "myCluster"))))
+        .thenReturn(new GetMetricStatisticsResult().withDatapoints(
+            new Datapoint().withTimestamp(new Date()).withAverage(1.0)));
+    Mockito.when(client.getMetricStatistics((GetMetricStatisticsRequest)argThat(
+        new GetMetricStatisticsRequestMatcher().Namespace("AWS/ElastiCache").MetricName("FreeableMemory").Dimension("CacheClusterId", "myCluster"))))
+        .thenReturn(new GetMetricStatisticsResult().withDatapoints(
+            new Datapoint().withTimestamp(new Date()).withAverage(2.0)));
+
+    assertEquals(1.0, registry.getSampleValue("aws_elasticache_cpuutilization_average", new String[]{"job", "instance", "cache_cluster_id"}, new String[]{"aws_elasticache", "", "myCluster"}), .01);
+    assertEquals(2.0, registry.getSampleValue("aws_elasticache_freeable_memory_average", new String[]{"job", "instance", "cache_cluster_id"}, new String[]{"aws_elasticache", "", "myCluster"}), .01);
+    assertNull(registry.getSampleValue("aws_elasticache_freeable_memory_average", new String[]{"job", "instance", "cache_cluster_id"}, new String[]{"aws_elasticache", "", "myOtherCluster"}));
+
+    // One ListMetrics call per scrape serves both rules.
+    Mockito.verify(client, Mockito.times(3)).listMetrics((ListMetricsRequest)anyObject());
+    Mockito.verify(client, Mockito.times(6)).getMetricStatistics((GetMetricStatisticsRequest)anyObject());
+  }
+
+  @Test
+  public void testThrottledRequestsAreRetried() throws Exception {
+    new CloudWatchCollector(
+        "---\nregion: reg\nmax_throttle_retries: 2\nrequests_per_second:\n  GetMetricStatistics: 100\nmetrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount", client).register(registry);
+
+    AmazonServiceException throttled = new AmazonServiceException("Rate exceeded");
+    throttled.setErrorCode("Throttling");
+    throttled.setStatusCode(400);
+    Mockito.when(client.getMetricStatistics((GetMetricStatisticsRequest)argThat(
+        new GetMetricStatisticsRequestMatcher().Namespace("AWS/ELB").MetricName("RequestCount"))))
+        .thenThrow(throttled)
+        .thenReturn(new GetMetricStatisticsResult().withDatapoints(
+            new Datapoint().withTimestamp(new Date()).withSum(2.0)));
+
+    Double retriesBefore = CollectorRegistry.defaultRegistry.getSampleValue("cloudwatch_exporter_throttle_retries_total", new String[]{"api"}, new String[]{"GetMetricStatistics"});
+    assertEquals(2.0, registry.getSampleValue("aws_elb_request_count_sum", new String[]{"job", "instance"}, new String[]{"aws_elb", ""}), .01);
+    assertEquals(0.0, registry.getSampleValue("cloudwatch_exporter_scrape_error"), .01);
+    Double retriesAfter = CollectorRegistry.defaultRegistry.getSampleValue("cloudwatch_exporter_throttle_retries_total", new String[]{"api"}, new String[]{"GetMetricStatistics"});
+    assertEquals(1.0, retriesAfter - (retriesBefore == null ? 0 : retriesBefore), .01);
+  }
+
+  @Test
+  public void testSdkLeavesThrottledRequestsToTheExporter() throws Exception {
+    AmazonServiceException throttled = new AmazonServiceException("Rate exceeded");
+    throttled.setErrorCode("Throttling");
+    throttled.setStatusCode(400);
+    AmazonServiceException failed = new AmazonServiceException("Internal failure");
+    failed.setErrorCode("InternalFailure");
+    failed.setStatusCode(500);
+    GetMetricStatisticsRequest request = new GetMetricStatisticsRequest();
+    assertFalse(CloudWatchCollector.SDK_RETRY_POLICY.getRetryCondition().shouldRetry(request, throttled, 0));
+    assertTrue(CloudWatchCollector.SDK_RETRY_POLICY.getRetryCondition().shouldRetry(request, failed, 0));
+
+    // Throttled requests are retried by default.
+    new CloudWatchCollector(
+        "---\nregion: reg\nmetrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount", client).register(registry);
+    Mockito.when(client.getMetricStatistics((GetMetricStatisticsRequest)anyObject()))
+        .thenThrow(throttled)
+        .thenThrow(throttled)
+        .thenReturn(new GetMetricStatisticsResult().withDatapoints(
+            new Datapoint().withTimestamp(new Date()).withSum(2.0)));
+    assertEquals(2.0, registry.getSampleValue("aws_elb_request_count_sum", new String[]{"job", "instance"}, new String[]{"aws_elb", ""}), .01);
+  }
+
+  @Test
+  public void testApiInstrumentation() throws Exception {
+    new CloudWatchCollector(
+        "---\nregion: reg\nmetrics:\n- aws_namespace: AWS/Instrumented\n  aws_metric_name: RequestCount", client).register(registry);
+    Mockito.when(client.getMetricStatistics((GetMetricStatisticsRequest)argThat(
+        new GetMetricStatisticsRequestMatcher().Namespace("AWS/Instrumented").MetricName("RequestCount"))))
+        .thenReturn(new GetMetricStatisticsResult().withDatapoints(
+            new Datapoint().withTimestamp(new Date(1)).withSum(1.0),
+            new Datapoint().withTimestamp(new Date()).withSum(2.0)));
+
+    assertEquals(2.0, registry.getSampleValue("aws_instrumented_request_count_sum", new String[]{"job", "instance"}, new String[]{"aws_instrumented", ""}), .01);
+    assertEquals(2.0, CollectorRegistry.defaultRegistry.getSampleValue("cloudwatch_exporter_datapoints_received_total",
+        new String[]{"api", "namespace"}, new String[]{"GetMetricStatistics", "AWS/Instrumented"}), .01);
+    assertEquals(1.0, CollectorRegistry.defaultRegistry.getSampleValue("cloudwatch_exporter_api_request_duration_seconds_count",
+        new String[]{"api", "namespace"}, new String[]{"GetMetricStatistics", "AWS/Instrumented"}), .01);
+    assertEquals(0.0, CollectorRegistry.defaultRegistry.getSampleValue("cloudwatch_exporter_api_requests_in_flight",
+        new String[]{"api"}, new String[]{"GetMetricStatistics"}), .01);
+    for (String phase: Arrays.asList("fetch", "assembly", "serialization")) {
+      assertNotNull(CollectorRegistry.defaultRegistry.getSampleValue("cloudwatch_exporter_phase_seconds_total", new String[]{"phase"}, new String[]{phase}));
+    }
+  }
+
+  @Test
+  public void testFailedRuleDoesNotAffectOtherRules() throws Exception {
+    new CloudWatchCollector(
+        "---\nregion: reg\nmetrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount\n- aws_namespace: AWS/ELB\n  aws_metric_name: Latency", client).register(registry);
+
+    Mockito.when(client.getMetricStatistics((GetMetricStatisticsRequest)argThat(
+        new GetMetricStatisticsRequestMatcher().Namespace("AWS/ELB").MetricName("RequestCount"))))
+        .thenThrow(new AmazonServiceException("Access denied"));
+    Mockito.when(client.getMetricStatistics((GetMetricStatisticsRequest)argThat(
+        new GetMetricStatisticsRequestMatcher().Namespace("AWS/ELB").MetricName("Latency"))))
+        .thenReturn(new GetMetricStatisticsResult().withDatapoints(
+            new Datapoint().withTimestamp(new Date()).withAverage(2.0)));
+
+    Double errorsBefore = CollectorRegistry.defaultRegistry.getSampleValue("cloudwatch_exporter_rule_errors_total", new String[]{"region", "account_id", "namespace", "metric_name"}, new String[]{"reg", "", "AWS/ELB", "RequestCount"});
+    assertEquals(2.0, registry.getSampleValue("aws_elb_latency_average", new String[]{"job", "instance"}, new String[]{"aws_elb", ""}), .01);
+    Double errorsAfter = CollectorRegistry.defaultRegistry.getSampleValue("cloudwatch_exporter_rule_errors_total", new String[]{"region", "account_id", "namespace", "metric_name"}, new String[]{"reg", "", "AWS/ELB", "RequestCount"});
+    assertEquals(1.0, errorsAfter - (errorsBefore == null ? 0 : errorsBefore), .01);
+    assertNull(registry.getSampleValue("aws_elb_request_count_average", new String[]{"job", "instance"}, new String[]{"aws_elb", ""}));
+    assertEquals(1.0, registry.getSampleValue("cloudwatch_exporter_scrape_error"), .01);
+    assertNotNull(CollectorRegistry.defaultRegistry.getSampleValue("cloudwatch_exporter_rule_last_success_timestamp_seconds", new String[]{"region", "account_id", "namespace", "metric_name"}, new String[]{"reg", "", "AWS/ELB", "Latency"}));
+  }
+
+  @Test
+  public void testAgainstSimulator() throws Exception {
+    CloudWatchSimulator simulator = new CloudWatchSimulator(3).withPageSize(2);
+    simulator.start();
+    System.setProperty("aws.accessKeyId", "simulated");
+    System.setProperty("aws.secretKey", "simulated");
+    try {
+      new CloudWatchCollector("---\nregion: us-east-1\nendpoint_url: " + simulator.getEndpoint()
+          + "\nmetrics:\n- aws_namespace: AWS/EC2\n  aws_metric_name: CPUUtilization\n  aws_dimensions:\n  - InstanceId\n  aws_statistics:\n  - Maximum"
+          + "\n- aws_namespace: AWS/EBS\n  aws_metric_name: VolumeIdleTime\n  aws_dimensions:\n  - VolumeId\n  aws_statistics:\n  - Average\n  use_get_metric_data: true").register(registry);
+
+      for (int i = 0; i < 3; i++) {
+        assertNotNull(registry.getSampleValue("aws_ec2_cpuutilization_maximum", new String[]{"job", "instance", "instance_id"}, new String[]{"aws_ec2", "", "InstanceId-" + i}));
+        assertNotNull(registry.getSampleValue("aws_ebs_volume_idle_time_average", new String[]{"job", "instance", "volume_id"}, new String[]{"aws_ebs", "", "VolumeId-" + i}));
+      }
+      assertEquals(4, simulator.getCallCount("ListMetrics"));
+      assertEquals(3, simulator.getCallCount("GetMetricStatistics"));
+      assertEquals(1, simulator.getCallCount("GetMetricData"));
+    } finally {
+      System.clearProperty("aws.accessKeyId");
+      System.clearProperty("aws.secretKey");
+      simulator.stop();
+    }
+  }
+
+  @Test
+  public void testRulesDifferingInStatisticsShareFetches() throws Exception {
+    new CloudWatchCollector(
+        "---\nregion: reg\nmetrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: Latency\n  aws_dimensions:\n  - LoadBalancerName\n  aws_statistics:\n  - Average"
+        + "\n- aws_namespace: AWS/ELB\n  aws_metric_name: Latency\n  aws_dimensions:\n  - LoadBalancerName\n  aws_statistics:\n  - Maximum\n  aws_extended_statistics:\n  - p99\n  help: Tail latency", client).register(registry);
+
+    Mockito.when(client.listMetrics((ListMetricsRequest)argThat(
+        new ListMetricsRequestMatcher().Namespace("AWS/ELB").MetricName("Latency").Dimensions("LoadBalancerName"))))
+        .thenReturn(new ListMetricsResult().withMetrics(
+          new Metric().withDimensions(new Dimension().withName("LoadBalancerName").withValue("myLB")),
+          new Metric().withDimensions(new Dimension().withName("LoadBalancerName").withValue("myOtherLB"))));
+    for (String lb: Arrays.asList("myLB", "myOtherLB")) {
+      Mockito.when(client.getMetricStatistics((GetMetricStatisticsRequest)argThat(
+          new GetMetricStatisticsRequestMatcher().Namespace("AWS/ELB").MetricName("Latency").Dimension("LoadBalancerName", lb))))
+          .thenReturn(new GetMetricStatisticsResult().withDatapoints(
+              new Datapoint().withTimestamp(new Date()).withAverage(1.0).withMaximum(2.0).withExtendedStatistics(Collections.singletonMap("p99", 3.0))));
+    }
+
+    List<MetricFamilySamples> mfs = Collections.list(registry.metricFamilySamples());
+    assertEquals(1.0, registry.getSampleValue("aws_elb_latency_average", new String[]{"job", "instance", "load_balancer_name"}, new String[]{"aws_elb", "", "myLB"}), .01);
+    assertEquals(2.0, registry.getSampleValue("aws_elb_latency_maximum", new String[]{"job", "instance", "load_balancer_name"}, new String[]{"aws_elb", "", "myOtherLB"}), .01);
+    assertEquals(3.0, registry.getSampleValue("aws_elb_latency_p99", new String[]{"job", "instance", "load_balancer_name"}, new String[]{"aws_elb", "", "myOtherLB"}), .01);
+    for (MetricFamilySamples family: mfs) {
+      if (family.name.equals("aws_elb_latency_p99")) {
+        assertEquals("Tail latency", family.help);
+      }
+      // Each rule only exports its own statistics.
+      if (family.name.startsWith("aws_elb_latency_")) {
+        assertEquals(2, family.samples.size());
+      }
+    }
+
+    // One request per dimension set, for the statistics of both rules. The second scrape reuses the first.
+    Mockito.verify(client, Mockito.times(2)).getMetricStatistics((GetMetricStatisticsRequest)anyObject());
+    Mockito.verify(client, Mockito.times(2)).getMetricStatistics((GetMetricStatisticsRequest)argThat(new ArgumentMatcher() {
+      public boolean matches(Object o) {
+        GetMetricStatisticsRequest request = (GetMetricStatisticsRequest) o;
+        return request.getStatistics().equals(Arrays.asList("Average", "Maximum"))
+            && request.getExtendedStatistics().equals(Arrays.asList("p99"));
+      }
+    }));
+  }
+
+  @Test
+  public void testCardinalityCaps() throws Exception {
+    new CloudWatchCollector(
+        "---\nregion: reg\nmax_dimension_sets: 2\nmetrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: Latency\n  aws_dimensions:\n  - LoadBalancerName\n  aws_statistics:\n  - Average"
+        + "\n- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount\n  aws_dimensions:\n  - LoadBalancerName\n  aws_statistics:\n  - Sum\n  max_dimension_sets: 0\n  max_series: 2\n  cardinality_policy: top_k"
+        + "\n- aws_namespace: AWS/ELB\n  aws_metric_name: HTTPCode_ELB_5XX\n  aws_dimensions:\n  - LoadBalancerName\n  aws_statistics:\n  - Sum\n  cardinality_policy: fail", client).register(registry);
+
+    List<String> lbs = Arrays.asList("a", "b", "c");
+    for (String metric: Arrays.asList("Latency", "RequestCount", "HTTPCode_ELB_5XX")) {
+      Mockito.when(client.listMetrics((ListMetricsRequest)argThat(
+          new ListMetricsRequestMatcher().Namespace("AWS/ELB").MetricName(metric).Dimensions("LoadBalancerName"))))
+          .thenReturn(new ListMetricsResult().withMetrics(
+            new Metric().withDimensions(new Dimension().withName("LoadBalancerName").withValue("a")),
+            new Metric().withDimensions(new Dimension().withName("LoadBalancerName").withValue("b")),
+            new Metric().withDimensions(new Dimension().withName("LoadBalancerName").withValue("c"))));
+      for (int i = 0; i < lbs.size(); i++) {
+        Mockito.when(client.getMetricStatistics((GetMetricStatisticsRequest)argThat(
+            new GetMetricStatisticsRequestMatcher().Namespace("AWS/ELB").MetricName(metric).Dimension("LoadBalancerName", lbs.get(i)))))
+            .thenReturn(new GetMetricStatisticsResult().withDatapoints(
+                new Datapoint().withTimestamp(new Date()).withAverage(1.0 + i).withSum(i == 1 ? 1.0 : 10.0 + i)));
+      }
+    }
+    String[] labels = new String[]{"region", "account_id", "namespace", "metric_name"};
+    Double droppedBefore = CollectorRegistry.defaultRegistry.getSampleValue("cloudwatch_exporter_dropped_series_total", labels, new String[]{"reg", "", "AWS/ELB", "RequestCount"});
+
+    // The first two dimension sets of Latency are fetched.
+    assertEquals(1.0, registry.getSampleValue("aws_elb_latency_average", new String[]{"job", "instance", "load_balancer_name"}, new String[]{"aws_elb", "", "a"}), .01);
+    assertEquals(2.0, registry.getSampleValue("aws_elb_latency_average", new String[]{"job", "instance", "load_balancer_name"}, new String[]{"aws_elb", "", "b"}), .01);
+    assertNull(registry.getSampleValue("aws_elb_latency_average", new String[]{"job", "instance", "load_balancer_name"}, new String[]{"aws_elb", "", "c"}));
+    Mockito.verify(client, Mockito.never()).getMetricStatistics((GetMetricStatisticsRequest)argThat(
+        new GetMetricStatisticsRequestMatcher().Namespace("AWS/ELB").MetricName("Latency").Dimension("LoadBalancerName", "c")));
+    // RequestCount keeps the two series with the highest values.
+    assertEquals(10.0, registry.getSampleValue("aws_elb_request_count_sum", new String[]{"job", "instance", "load_balancer_name"}, new String[]{"aws_elb", "", "a"}), .01);
+    assertNull(registry.getSampleValue("aws_elb_request_count_sum", new String[]{"job", "instance", "load_balancer_name"}, new String[]{"aws_elb", "", "b"}));
+    assertEquals(12.0, registry.getSampleValue("aws_elb_request_count_sum", new String[]{"job", "instance", "load_balancer_name"}, new String[]{"aws_elb", "", "c"}), .01);
+    Double droppedAfter = CollectorRegistry.defaultRegistry.getSampleValue("cloudwatch_exporter_dropped_series_total", labels, new String[]{"reg", "", "AWS/ELB", "RequestCount"});
+    assertTrue(droppedAfter - (droppedBefore == null ? 0 : droppedBefore) >= 1.0);
+    // HTTPCode_ELB_5XX fails rather than being cut short.
+    assertNull(registry.getSampleValue("aws_elb_httpcode_elb_5_xx_sum", new String[]{"job", "instance", "load_balancer_name"}, new String[]{"aws_elb", "", "a"}));
+    assertEquals(1.0, registry.getSampleValue("cloudwatch_exporter_scrape_error"), .01);
+  }
+
+  @Test
+  public void testMaxTotalSeries() throws Exception {
+    new CloudWatchCollector(
+        "---\nregion: reg\nmax_total_series: 1\nmetrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount\n  aws_statistics:\n  - Sum"
+        + "\n- aws_namespace: AWS/ELB\n  aws_metric_name: Latency\n  aws_statistics:\n  - Average", client).register(registry);
+    Mockito.when(client.getMetricStatistics((GetMetricStatisticsRequest)argThat(
+        new GetMetricStatisticsRequestMatcher().Namespace("AWS/ELB").MetricName("RequestCount"))))
+        .thenReturn(new GetMetricStatisticsResult().withDatapoints(
+            new Datapoint().withTimestamp(new Date()).withSum(2.0)));
+    Mockito.when(client.getMetricStatistics((GetMetricStatisticsRequest)argThat(
+        new GetMetricStatisticsRequestMatcher().Namespace("AWS/ELB").MetricName("Latency"))))
+        .thenReturn(new GetMetricStatisticsResult().withDatapoints(
+            new Datapoint().withTimestamp(new Date()).withAverage(3.0)));
+
+    assertEquals(2.0, registry.getSampleValue("aws_elb_request_count_sum", new String[]{"job", "instance"}, new String[]{"aws_elb", ""}), .01);
+    assertNull(registry.getSampleValue("aws_elb_latency_average", new String[]{"job", "instance"}, new String[]{"aws_elb", ""}));
+    assertEquals(0.0, registry.getSampleValue("cloudwatch_exporter_scrape_error"), .01);
+  }
+
+  @Test
+  public void testRank() throws Exception {
+    assertEquals(Arrays.asList(2, 0, 1, 3), CloudWatchCollector.rank(new Double[]{2.0, null, 5.0, null}));
+  }
 }
@@ -0,0 +1,280 @@
+package io.prometheus.cloudwatch;
+
+import com.amazonaws.util.DateUtils;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A fake CloudWatch API endpoint, for running the exporter end to end against fleets of any size.
+ *
+ * Every metric that is asked for exists, with `series` dimension sets. The value of dimension D of series i is "D-i".
+ * ListMetrics requests without a metric name return the metrics in `metricNames`. Data requests get one
+ * datapoint per period in range, with values derived from the series and time.
+ *
+ * Latency, errors and throttling can be injected. Point a client at it with
+ * `client.setEndpoint(simulator.getEndpoint())` or the `endpoint_url` config.
+ */
+class CloudWatchSimulator {
+    static final String XMLNS = "http://monitoring.amazonaws.com/doc/2010-08-01/";
+
+    final int series;
+    List<String> metricNames = new ArrayList<String>();
+    int pageSize = 500;
+    long latencyMillis;
+    // Probability of a request failing with an InternalFailure or being throttled.
+    double errorRate;
+    double throttleRate;
+    // Requests beyond this many per second are throttled, 0 for no limit.
+    int requestsPerSecond;
+
+    private final ConcurrentHashMap<String, AtomicLong> calls = new ConcurrentHashMap<String, AtomicLong>();
+    private final Random random = new Random();
+    private long currentSecond;
+    private int currentSecondRequests;
+    private Server server;
+    private int port;
+
+    CloudWatchSimulator(int series) {
+      this.series = series;
+      metricNames.add("CPUUtilization");
+    }
+
+    CloudWatchSimulator withLatencyMillis(long latencyMillis) {
+      this.latencyMillis = latencyMillis;
+      return this;
+    }
+
+    CloudWatchSimulator withErrorRate(double errorRate) {
+      this.errorRate = errorRate;
+      return this;
+    }
+
+    CloudWatchSimulator withThrottleRate(double throttleRate) {
+      this.throttleRate = throttleRate;
+      return this;
+    }
+
+    CloudWatchSimulator withRequestsPerSecond(int requestsPerSecond) {
+      this.requestsPerSecond = requestsPerSecond;
+      return this;
+    }
+
+    CloudWatchSimulator withPageSize(int pageSize) {
+      this.pageSize = pageSize;
+      return this;
+    }
+
+    void start() throws Exception {
+      server = new Server();
+      SelectChannelConnector connector = new SelectChannelConnector();
+      connector.setPort(0);
+      server.addConnector(connector);
+      ServletContextHandler context = new ServletContextHandler();
+      context.setContextPath("/");
+      // A GetMetricData request of 500 queries is well over Jetty's default limits of 200KB and 1000 parameters.
+      context.setMaxFormContentSize(Integer.MAX_VALUE);
+      context.setMaxFormKeys(Integer.MAX_VALUE);
+      context.addServlet(new ServletHolder(new ApiServlet()), "/*");
+      server.setHandler(context);
+      server.start();
+      port = connector.getLocalPort();
+    }
+
+    void stop() throws Exception {
+      server.stop();
+    }
+
+    String getEndpoint() {
+      return "http://localhost:" + port;
+    }
+
+    /**
+     * Returns how many requests were made for an action, e.g. ListMetrics, or for "Throttled" and "Failed" requests.
+     */
+    long getCallCount(String action) {
+      AtomicLong count = calls.get(action);
+      return count == null ? 0 : count.get();
+    }
+
+    void resetCallCounts() {
+      calls.clear();
+    }
+
+    private void count(String action) {
+      AtomicLong count = calls.get(action);
+      if (count == null) {
+        calls.putIfAbsent(action, new AtomicLong());
+        count = calls.get(action);
+      }
+      count.incrementAndGet();
+    }
+
+    private synchronized boolean overRateLimit() {
+      if (requestsPerSecond <= 0) {
+        return false;
+      }
+      long second = System.currentTimeMillis() / 1000;
+      if (second != currentSecond) {
+        currentSecond = second;
+        currentSecondRequests = 0;
+      }
+      return ++currentSecondRequests > requestsPerSecond;
+    }
+
+    private synchronized double nextRandom() {
+      return random.nextDouble();
+    }
+
+    class ApiServlet extends HttpServlet {
+      protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        String action = req.getParameter("Action");
+        count(action);
+        if (latencyMillis > 0) {
+          try {
+            Thread.sleep(latencyMillis);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+        resp.setContentType("text/xml");
+        resp.setHeader("x-amzn-RequestId", "simulated");
+        if (overRateLimit() || nextRandom() < throttleRate) {
+          count("Throttled");
+          error(resp, 400, "Throttling", "Rate exceeded");
+          return;
+        }
+        if (nextRandom() < errorRate) {
+          count("Failed");
+          error(resp, 500, "InternalFailure", "Simulated failure");
+          return;
+        }
+        if ("ListMetrics".equals(action)) {
+          listMetrics(req, resp);
+        } else if ("GetMetricStatistics".equals(action)) {
+          getMetricStatistics(req, resp);
+        } else if ("GetMetricData".equals(action)) {
+          getMetricData(req, resp);
+        } else {
+          error(resp, 400, "InvalidAction", "Unsupported action " + action);
+        }
+      }
+    }
+
+    private void error(HttpServletResponse resp, int status, String code, String message) throws IOException {
+      resp.setStatus(status);
+      Writer w = resp.getWriter();
+      w.write("<ErrorResponse xmlns=\"" + XMLNS + "\"><Error><Type>" + (status < 500 ? "Sender" : "Receiver")
+          + "</Type><Code>" + code + "</Code><Message>" + message + "</Message></Error><RequestId>simulated</RequestId></ErrorResponse>");
+    }
+
+    private static List<String> memberList(HttpServletRequest req, String prefix, String suffix) {
+      List<String> values = new ArrayList<String>();
+      for (int i = 1; req.getParameter(prefix + ".member." + i + suffix) != null; i++) {
+        values.add(req.getParameter(prefix + ".member." + i + suffix));
+      }
+      return values;
+    }
+
+    private void listMetrics(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+      String namespace = req.getParameter("Namespace");
+      List<String> names = new ArrayList<String>(metricNames);
+      if (req.getParameter("MetricName") != null) {
+        names.clear();
+        names.add(req.getParameter("MetricName"));
+      }
+      List<String> dimensionNames = memberList(req, "Dimensions", ".Name");
+      int total = names.size() * series;
+      int start = req.getParameter("NextToken") == null ? 0 : Integer.parseInt(req.getParameter("NextToken"));
+      int end = Math.min(start + pageSize, total);
+
+      StringBuilder xml = new StringBuilder();
+      xml.append("<ListMetricsResponse xmlns=\"").append(XMLNS).append("\"><ListMetricsResult><Metrics>");
+      for (int i = start; i < end; i++) {
+        xml.append("<member><Namespace>").append(namespace).append("</Namespace><MetricName>")
+            .append(names.get(i / series)).append("</MetricName><Dimensions>");
+        for (String dimension: dimensionNames) {
+          xml.append("<member><Name>").append(dimension).append("</Name><Value>")
+              .append(dimension).append('-').append(i % series).append("</Value></member>");
+        }
+        xml.append("</Dimensions></member>");
+      }
+      xml.append("</Metrics>");
+      if (end < total) {
+        xml.append("<NextToken>").append(end).append("</NextToken>");
+      }
+      xml.append("</ListMetricsResult><ResponseMetadata><RequestId>simulated</RequestId></ResponseMetadata></ListMetricsResponse>");
+      resp.getWriter().write(xml.toString());
+    }
+
+    /**
+     * Returns the start of each period within the range, oldest first.
+     */
+    private static List<Long> periods(HttpServletRequest req, String startTime, String endTime, String period) {
+      long start = DateUtils.parseISO8601Date(req.getParameter(startTime)).getTime();
+      long end = DateUtils.parseISO8601Date(req.getParameter(endTime)).getTime();
+      long periodMillis = 1000L * Integer.parseInt(req.getParameter(period));
+      List<Long> periods = new ArrayList<Long>();
+      for (long t = (start + periodMillis - 1) / periodMillis * periodMillis; t < end; t += periodMillis) {
+        periods.add(t);
+      }
+      return periods;
+    }
+
+    private static double value(String seriesKey, long timestamp) {
+      return Math.abs((seriesKey.hashCode() * 31 + timestamp / 1000) % 100);
+    }
+
+    private void getMetricStatistics(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+      String seriesKey = req.getParameter("MetricName") + memberList(req, "Dimensions", ".Value");
+      List<String> statistics = memberList(req, "Statistics", "");
+      StringBuilder xml = new StringBuilder();
+      xml.append("<GetMetricStatisticsResponse xmlns=\"").append(XMLNS).append("\"><GetMetricStatisticsResult><Label>")
+          .append(req.getParameter("MetricName")).append("</Label><Datapoints>");
+      for (long t: periods(req, "StartTime", "EndTime", "Period")) {
+        double value = value(seriesKey, t);
+        xml.append("<member><Timestamp>").append(DateUtils.formatISO8601Date(new Date(t))).append("</Timestamp>");
+        for (String statistic: statistics) {
+          xml.append('<').append(statistic).append('>').append(statistic.equals("SampleCount") ? 60.0 : value)
+              .append("</").append(statistic).append('>');
+        }
+        xml.append("<Unit>Percent</Unit></member>");
+      }
+      xml.append("</Datapoints></GetMetricStatisticsResult><ResponseMetadata><RequestId>simulated</RequestId></ResponseMetadata></GetMetricStatisticsResponse>");
+      resp.getWriter().write(xml.toString());
+    }
+
+    private void getMetricData(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+      List<String> ids = memberList(req, "MetricDataQueries", ".Id");
+      StringBuilder xml = new StringBuilder();
+      xml.append("<GetMetricDataResponse xmlns=\"").append(XMLNS).append("\"><GetMetricDataResult><MetricDataResults>");
+      for (int i = 1; i <= ids.size(); i++) {
+        String prefix = "MetricDataQueries.member." + i + ".MetricStat";
+        String seriesKey = req.getParameter(prefix + ".Metric.MetricName") + memberList(req, prefix + ".Metric.Dimensions", ".Value");
+        StringBuilder timestamps = new StringBuilder();
+        StringBuilder values = new StringBuilder();
+        for (long t: periods(req, "StartTime", "EndTime", prefix + ".Period")) {
+          timestamps.append("<member>").append(DateUtils.formatISO8601Date(new Date(t))).append("</member>");
+          values.append("<member>").append(value(seriesKey, t)).append("</member>");
+        }
+        xml.append("<member><Id>").append(ids.get(i - 1)).append("</Id><Label>").append(seriesKey)
+            .append("</Label><StatusCode>Complete</StatusCode><Timestamps>").append(timestamps)
+            .append("</Timestamps><Values>").append(values).append("</Values></member>");
+      }
+      xml.append("</MetricDataResults></GetMetricDataResult><ResponseMetadata><RequestId>simulated</RequestId></ResponseMetadata></GetMetricDataResponse>");
+      resp.getWriter().write(xml.toString());
+    }
+}
@@ -0,0 +1,122 @@
+package io.prometheus.cloudwatch;
+
+import com.amazonaws.services.cloudwatch.model.Dimension;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Filters dimension sets through aws_dimension_select and aws_dimension_select_regex,
+ * comparing the precompiled rule against matching on the raw config lists as was done before.
+ *
+ * Run with: mvn -P benchmark test-compile exec:exec -Dbenchmark=DimensionSelectBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DimensionSelectBenchmark {
+    @Param({"1000", "10000"})
+    int dimensionSets;
+
+    @Param({"1", "10"})
+    int selectValues;
+
+    List<List<Dimension>> dimensions;
+    CloudWatchCollector.MetricRule rule;
+    Map<String, List<String>> rawSelect;
+    Map<String, List<String>> rawSelectRegex;
+
+    @Setup
+    public void setup() {
+      rawSelect = new HashMap<String, List<String>>();
+      rawSelectRegex = new HashMap<String, List<String>>();
+      List<String> names = new ArrayList<String>();
+      List<String> regexes = new ArrayList<String>();
+      for (int i = 0; i < selectValues; i++) {
+        names.add("i-" + i);
+        regexes.add("app-" + i + "-.*");
+      }
+      rawSelect.put("InstanceId", names);
+      rawSelectRegex.put("AutoScalingGroupName", regexes);
+
+      rule = new CloudWatchCollector.MetricRule();
+      rule.awsDimensionSelect = new HashMap<String, Set<String>>();
+      rule.awsDimensionSelect.put("InstanceId", new HashSet<String>(names));
+      rule.awsDimensionSelectRegex = new HashMap<String, List<Pattern>>();
+      rule.awsDimensionSelectRegex.put("AutoScalingGroupName", CloudWatchCollector.compileRegexList(regexes));
+
+      dimensions = new ArrayList<List<Dimension>>();
+      for (int i = 0; i < dimensionSets; i++) {
+        dimensions.add(Arrays.asList(
+            new Dimension().withName("InstanceId").withValue("i-" + (i % (2 * selectValues))),
+            new Dimension().withName("AutoScalingGroupName").withValue("app-" + (i % (2 * selectValues)) + "-asg")));
+      }
+    }
+
+    @Benchmark
+    public void precompiled(Blackhole bh) {
+      for (List<Dimension> d : dimensions) {
+        bh.consume(CloudWatchCollector.useMetric(rule, d));
+      }
+    }
+
+    @Benchmark
+    public void uncompiled(Blackhole bh) {
+      for (List<Dimension> d : dimensions) {
+        bh.consume(uncompiledUseMetric(d));
+      }
+    }
+
+    private boolean uncompiledUseMetric(List<Dimension> dimensions) {
+      boolean selected = true;
+      for (Dimension dimension : dimensions) {
+        List<String> allowed = rawSelect.get(dimension.getName());
+        if (allowed != null && !allowed.contains(dimension.getValue())) {
+          selected = false;
+          break;
+        }
+      }
+      if (selected) {
+        return true;
+      }
+      for (Dimension dimension : dimensions) {
+        List<String> allowed = rawSelectRegex.get(dimension.getName());
+        if (allowed == null) {
+          continue;
+        }
+        boolean matched = false;
+        for (String regex : allowed) {
+          if (Pattern.matches(regex, dimension.getValue())) {
+            matched = true;
+            break;
+          }
+        }
+        if (!matched) {
+          return false;
+        }
+      }
+      return true;
+    }
+}
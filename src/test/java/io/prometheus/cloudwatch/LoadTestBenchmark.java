@@ -0,0 +1,136 @@
+package io.prometheus.cloudwatch;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.InputStream;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the whole exporter, WebServer included, against a CloudWatchSimulator and scrapes /metrics over HTTP.
+ *
+ * After each iteration the API calls made and the heap in use are printed. Run with:
+ * mvn -P benchmark test-compile exec:exec -Dbenchmark="LoadTestBenchmark -prof gc"
+ * to also report the allocation rate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 10)
+@Measurement(iterations = 5, time = 10)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class LoadTestBenchmark {
+    @Param({"1000", "10000"})
+    int series;
+
+    @Param({"0", "50"})
+    int latencyMillis;
+
+    @Param({"false", "true"})
+    boolean useGetMetricData;
+
+    CloudWatchSimulator simulator;
+    URL metricsUrl;
+    File configFile;
+
+    @Setup
+    public void setup() throws Exception {
+      simulator = new CloudWatchSimulator(series).withLatencyMillis(latencyMillis);
+      simulator.metricNames.add("NetworkIn");
+      simulator.start();
+
+      configFile = File.createTempFile("loadtest", ".yml");
+      configFile.deleteOnExit();
+      Writer writer = new FileWriter(configFile);
+      try {
+        writer.write("---\nregion: us-east-1\nendpoint_url: " + simulator.getEndpoint()
+            + "\nrefresh_seconds: 0\nmax_concurrency: 16\nuse_get_metric_data: " + useGetMetricData
+            + "\nmetrics:\n- aws_namespace: AWS/EC2\n  aws_metric_name: CPUUtilization\n  aws_dimensions:\n  - InstanceId"
+            + "\n  aws_statistics:\n  - Average\n  - Maximum"
+            + "\n- aws_namespace: AWS/EC2\n  aws_metric_name: NetworkIn\n  aws_dimensions:\n  - InstanceId\n  - AutoScalingGroupName"
+            + "\n  aws_statistics:\n  - Sum\n");
+      } finally {
+        writer.close();
+      }
+
+      // The simulator ignores signatures, but the client still needs credentials to sign with.
+      System.setProperty("aws.accessKeyId", "simulated");
+      System.setProperty("aws.secretKey", "simulated");
+      ServerSocket socket = new ServerSocket(0);
+      final int port = socket.getLocalPort();
+      socket.close();
+      Thread server = new Thread() {
+        public void run() {
+          try {
+            WebServer.main(new String[]{Integer.toString(port), configFile.getPath()});
+          } catch (Exception e) {
+            e.printStackTrace();
+          }
+        }
+      };
+      server.setDaemon(true);
+      server.start();
+      metricsUrl = new URL("http://localhost:" + port + "/metrics");
+      for (int i = 0; ; i++) {
+        try {
+          ((HttpURLConnection) new URL("http://localhost:" + port + "/").openConnection()).getResponseCode();
+          break;
+        } catch (java.io.IOException e) {
+          if (i == 100) {
+            throw e;
+          }
+          Thread.sleep(100);
+        }
+      }
+    }
+
+    @TearDown(Level.Iteration)
+    public void report() {
+      Runtime runtime = Runtime.getRuntime();
+      System.gc();
+      System.out.printf("%nAPI calls: ListMetrics=%d GetMetricStatistics=%d GetMetricData=%d Throttled=%d, heap used: %d MB%n",
+          simulator.getCallCount("ListMetrics"), simulator.getCallCount("GetMetricStatistics"),
+          simulator.getCallCount("GetMetricData"), simulator.getCallCount("Throttled"),
+          (runtime.totalMemory() - runtime.freeMemory()) >> 20);
+      simulator.resetCallCounts();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+      simulator.stop();
+    }
+
+    @Benchmark
+    public long scrape() throws Exception {
+      HttpURLConnection connection = (HttpURLConnection) metricsUrl.openConnection();
+      connection.setRequestProperty("Accept-Encoding", "gzip");
+      InputStream in = connection.getInputStream();
+      long bytes = 0;
+      try {
+        byte[] buffer = new byte[65536];
+        for (int n; (n = in.read(buffer)) != -1; ) {
+          bytes += n;
+        }
+      } finally {
+        in.close();
+      }
+      return bytes;
+    }
+}
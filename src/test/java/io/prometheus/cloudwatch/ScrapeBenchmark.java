@@ -0,0 +1,163 @@
+package io.prometheus.cloudwatch;
+
+import com.amazonaws.services.cloudwatch.AmazonCloudWatchClient;
+import com.amazonaws.services.cloudwatch.model.Datapoint;
+import com.amazonaws.services.cloudwatch.model.Dimension;
+import com.amazonaws.services.cloudwatch.model.GetMetricDataRequest;
+import com.amazonaws.services.cloudwatch.model.GetMetricDataResult;
+import com.amazonaws.services.cloudwatch.model.GetMetricStatisticsRequest;
+import com.amazonaws.services.cloudwatch.model.GetMetricStatisticsResult;
+import com.amazonaws.services.cloudwatch.model.ListMetricsRequest;
+import com.amazonaws.services.cloudwatch.model.ListMetricsResult;
+import com.amazonaws.services.cloudwatch.model.Metric;
+import com.amazonaws.services.cloudwatch.model.MetricDataQuery;
+import com.amazonaws.services.cloudwatch.model.MetricDataResult;
+import io.prometheus.client.Collector.MetricFamilySamples;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Scrapes a synthetic fleet through a stubbed CloudWatch client, so only the exporter's own work is measured.
+ *
+ * Every instance of the fleet reports CPUUtilization with InstanceId and AutoScalingGroupName dimensions,
+ * half of them in groups selected by aws_dimension_select_regex.
+ *
+ * Run with: mvn -P benchmark test-compile exec:exec -Dbenchmark="ScrapeBenchmark -prof gc"
+ * to also report the allocation rate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class ScrapeBenchmark {
+    @Param({"10000", "100000", "1000000"})
+    int dimensionSets;
+
+    @Param({"false", "true"})
+    boolean useGetMetricData;
+
+    static final int GROUPS = 100;
+
+    CloudWatchCollector collector;
+    CloudWatchCollector.MetricRule rule;
+    Map<String, List<List<Dimension>>> listed;
+    List<String> dimensionNames;
+
+    /**
+     * Serves ListMetrics from a pre-generated fleet and answers every data request with a single datapoint.
+     */
+    static class StubCloudWatchClient extends AmazonCloudWatchClient {
+      final List<Metric> metrics;
+      final int pageSize = 500;
+
+      StubCloudWatchClient(List<Metric> metrics) {
+        this.metrics = metrics;
+      }
+
+      @Override
+      public ListMetricsResult listMetrics(ListMetricsRequest request) {
+        int start = request.getNextToken() == null ? 0 : Integer.parseInt(request.getNextToken());
+        int end = Math.min(start + pageSize, metrics.size());
+        ListMetricsResult result = new ListMetricsResult().withMetrics(metrics.subList(start, end));
+        if (end < metrics.size()) {
+          result.setNextToken(Integer.toString(end));
+        }
+        return result;
+      }
+
+      @Override
+      public GetMetricStatisticsResult getMetricStatistics(GetMetricStatisticsRequest request) {
+        return new GetMetricStatisticsResult().withDatapoints(new Datapoint()
+            .withTimestamp(new Date()).withAverage(1.0).withMaximum(2.0).withUnit("Percent"));
+      }
+
+      @Override
+      public GetMetricDataResult getMetricData(GetMetricDataRequest request) {
+        List<MetricDataResult> results = new ArrayList<MetricDataResult>();
+        Date now = new Date();
+        for (MetricDataQuery query : request.getMetricDataQueries()) {
+          results.add(new MetricDataResult().withId(query.getId()).withTimestamps(now).withValues(1.0));
+        }
+        return new GetMetricDataResult().withMetricDataResults(results);
+      }
+    }
+
+    @Setup
+    public void setup() throws Exception {
+      List<Metric> metrics = new ArrayList<Metric>(dimensionSets);
+      for (int i = 0; i < dimensionSets; i++) {
+        metrics.add(new Metric().withNamespace("AWS/EC2").withMetricName("CPUUtilization").withDimensions(
+            new Dimension().withName("InstanceId").withValue("i-" + i),
+            new Dimension().withName("AutoScalingGroupName").withValue((i % 2 == 0 ? "web-" : "batch-") + (i % GROUPS))));
+      }
+      StubCloudWatchClient client = new StubCloudWatchClient(metrics);
+
+      String config = "---\nregion: reg\nrefresh_seconds: 0\nmax_concurrency: 8\nuse_get_metric_data: " + useGetMetricData
+          + "\nmetrics:\n- aws_namespace: AWS/EC2\n  aws_metric_name: CPUUtilization\n  aws_dimensions:\n  - InstanceId\n  - AutoScalingGroupName"
+          + "\n  aws_statistics:\n  - Average\n  - Maximum\n  aws_dimension_select_regex:\n    AutoScalingGroupName:\n    - web-.*";
+      collector = new CloudWatchCollector(config, client);
+
+      rule = new CloudWatchCollector.MetricRule();
+      rule.awsMetricName = "CPUUtilization";
+      rule.awsDimensions = Arrays.asList("InstanceId", "AutoScalingGroupName");
+      rule.awsDimensionSelectRegex = new HashMap<String, List<Pattern>>();
+      rule.awsDimensionSelectRegex.put("AutoScalingGroupName", CloudWatchCollector.compileRegexList(Arrays.asList("web-.*")));
+      listed = new HashMap<String, List<List<Dimension>>>();
+      List<List<Dimension>> dimensionsList = new ArrayList<List<Dimension>>(dimensionSets);
+      for (Metric metric : metrics) {
+        dimensionsList.add(metric.getDimensions());
+      }
+      listed.put("CPUUtilization", dimensionsList);
+
+      dimensionNames = new ArrayList<String>();
+      for (int i = 0; i < GROUPS; i++) {
+        dimensionNames.add("AutoScalingGroupName" + i);
+        dimensionNames.add("aws.ec2/CPUUtilization-" + i);
+      }
+    }
+
+    @Benchmark
+    public List<MetricFamilySamples> scrape() {
+      return collector.collect();
+    }
+
+    @Benchmark
+    public List<List<Dimension>> getDimensions() {
+      return CloudWatchCollector.getDimensions(rule, listed);
+    }
+
+    @Benchmark
+    public void names(Blackhole bh) {
+      for (String name : dimensionNames) {
+        bh.consume(CloudWatchCollector.safeName(CloudWatchCollector.toSnakeCase(name)));
+      }
+    }
+
+    @Benchmark
+    public void cachedNames(Blackhole bh) {
+      for (String name : dimensionNames) {
+        bh.consume(CloudWatchCollector.snakeCaseName(name));
+      }
+    }
+}